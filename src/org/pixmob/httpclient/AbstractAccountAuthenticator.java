@@ -34,12 +34,19 @@ import android.os.Bundle;
  * authentication token from {@link AccountManager}, by calling
  * {@link #generateAuthToken()}. This token allows an application to
  * authenticate using user credential without requesting for the user password.
+ * Authentication tokens are cached in memory, and shared by every
+ * authenticator using the same account.
  * @see #generateAuthToken()
  * @author Pixmob
  */
 public abstract class AbstractAccountAuthenticator extends HttpRequestHandler {
+    /**
+     * Default authentication token lifetime: 30 minutes.
+     */
+    public static final long DEFAULT_TOKEN_LIFETIME = 30 * 60 * 1000;
     private final Context context;
     private final Account account;
+    private long tokenLifetime = DEFAULT_TOKEN_LIFETIME;
 
     public AbstractAccountAuthenticator(final Context context, final Account account) {
         if (context == null) {
@@ -60,6 +67,31 @@ public abstract class AbstractAccountAuthenticator extends HttpRequestHandler {
         return account;
     }
 
+    /**
+     * Get how long an authentication token is cached, in milliseconds.
+     */
+    public final long getTokenLifetime() {
+        return tokenLifetime;
+    }
+
+    /**
+     * Set how long an authentication token is cached, in milliseconds. A
+     * cached token is refreshed in the background before it expires.
+     */
+    public final void setTokenLifetime(long tokenLifetime) {
+        if (tokenLifetime < 0) {
+            throw new IllegalArgumentException("Invalid token lifetime: " + tokenLifetime);
+        }
+        this.tokenLifetime = tokenLifetime;
+    }
+
+    /**
+     * Get a cache key for a token bound to the account.
+     */
+    final String getTokenKey(String tokenType) {
+        return account.type + ":" + account.name + ":" + tokenType;
+    }
+
     /**
      * Generate an authentication token. The user must grant credential access
      * when an application is using it for the first time. In this case,
@@ -68,7 +100,8 @@ public abstract class AbstractAccountAuthenticator extends HttpRequestHandler {
      * with <code>startActivityForResult</code> to start a system activity, in
      * order to get access to user credential. The user is free to deny
      * credential access. If credential access is granted, the next call to this
-     * method should not throw any error.
+     * method should not throw any error. The token is cached: concurrent
+     * calls wait for a single token request.
      * @see UserInteractionRequiredException#getUserIntent()
      * @throws UserInteractionRequiredException
      *             if user interaction is required in order to perform
@@ -77,7 +110,34 @@ public abstract class AbstractAccountAuthenticator extends HttpRequestHandler {
      *             if authentication failed (network error, bad credentials,
      *             etc...)
      */
-    protected final String generateAuthToken(String authTokenType) throws HttpClientException {
+    protected final String generateAuthToken(final String authTokenType) throws HttpClientException {
+        return AuthTokenCache.getInstance().get(getTokenKey(authTokenType), tokenLifetime,
+                new AuthTokenCache.Loader() {
+                    public String loadToken(String previousToken) throws HttpClientException {
+                        if (previousToken != null) {
+                            // The AccountManager would return the same token
+                            // from its own cache.
+                            final AccountManager am = (AccountManager) context
+                                    .getSystemService(Context.ACCOUNT_SERVICE);
+                            am.invalidateAuthToken(account.type, previousToken);
+                        }
+                        return fetchAuthToken(authTokenType);
+                    }
+                });
+    }
+
+    /**
+     * Invalidate an authentication token, which may have been rejected by a
+     * remote server. The next call to {@link #generateAuthToken(String)} gets
+     * a new token.
+     */
+    protected final void invalidateAuthToken(String authTokenType, String authToken) {
+        final AccountManager am = (AccountManager) context.getSystemService(Context.ACCOUNT_SERVICE);
+        am.invalidateAuthToken(account.type, authToken);
+        AuthTokenCache.getInstance().invalidate(getTokenKey(authTokenType), authToken);
+    }
+
+    private String fetchAuthToken(String authTokenType) throws HttpClientException {
         // Get an authentication token from the AccountManager:
         // this call is asynchronous, as the user may not respond immediately.
         final AccountManager am = (AccountManager) context.getSystemService(Context.ACCOUNT_SERVICE);
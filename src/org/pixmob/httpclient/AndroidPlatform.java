@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.httpclient;
+
+import static org.pixmob.httpclient.Constants.TAG;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.KeyStore;
+
+import javax.net.ssl.HostnameVerifier;
+
+import org.apache.http.conn.ssl.BrowserCompatHostnameVerifier;
+
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * {@link Platform} implementation for Android applications.
+ * @author Pixmob
+ */
+public final class AndroidPlatform extends Platform {
+    static {
+        if (Build.VERSION.SDK_INT <= Build.VERSION_CODES.FROYO) {
+            // Disable connection pooling before Froyo:
+            // http://stackoverflow.com/a/4261005/422906
+            System.setProperty("http.keepAlive", "false");
+        }
+    }
+
+    private static final HostnameVerifier HOSTNAME_VERIFIER = new BrowserCompatHostnameVerifier();
+    private final Context context;
+
+    public AndroidPlatform(final Context context) {
+        if (context == null) {
+            throw new IllegalArgumentException("Context cannot be null");
+        }
+        this.context = context;
+    }
+
+    public Context getContext() {
+        return context;
+    }
+
+    @Override
+    public File getCacheDir() {
+        return context.getCacheDir();
+    }
+
+    @Override
+    public File getFilesDir() {
+        return context.getFilesDir();
+    }
+
+    @Override
+    public KeyStore loadTrustStore() throws IOException {
+        // SSL certificates are provided by the Guardian Project:
+        // https://github.com/guardianproject/cacert
+        // Earlier Android versions do not have updated root CA
+        // certificates, resulting in connection errors.
+        try {
+            final KeyStore localTrustStore = KeyStore.getInstance("BKS");
+            final InputStream in = context.getResources().openRawResource(R.raw.hc_keystore);
+            try {
+                localTrustStore.load(in, null);
+            } finally {
+                in.close();
+            }
+
+            return localTrustStore;
+        } catch (Exception e) {
+            final IOException ioe = new IOException("Failed to load SSL certificates");
+            ioe.initCause(e);
+            throw ioe;
+        }
+    }
+
+    @Override
+    public HostnameVerifier getHostnameVerifier() {
+        return HOSTNAME_VERIFIER;
+    }
+
+    @Override
+    public int getSdkVersion() {
+        return Build.VERSION.SDK_INT;
+    }
+
+    @Override
+    public String getDefaultUserAgent() {
+        return "PixmobHttpClient (" + Build.MANUFACTURER + " " + Build.MODEL + "; Android "
+                + Build.VERSION.RELEASE + "/" + Build.VERSION.SDK_INT + ")";
+    }
+
+    @Override
+    public void logWarning(String message, Throwable error) {
+        Log.w(TAG, message, error);
+    }
+}
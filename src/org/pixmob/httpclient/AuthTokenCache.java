@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.httpclient;
+
+import static org.pixmob.httpclient.Constants.TAG;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Process-wide cache for authentication tokens. When a token is missing or
+ * expired, a single caller loads it while concurrent callers wait for the
+ * result. A token close to its expiry is refreshed in the background, while
+ * callers keep using the current token.
+ * @author Pixmob
+ */
+final class AuthTokenCache {
+    /**
+     * Part of the token lifetime after which the token is refreshed in the
+     * background.
+     */
+    private static final float REFRESH_RATIO = 0.8f;
+    private static final AuthTokenCache INSTANCE = new AuthTokenCache();
+    private final Map<String, Entry> entries = new HashMap<String, Entry>(4);
+    private ExecutorService refreshExecutor;
+
+    private AuthTokenCache() {
+    }
+
+    public static AuthTokenCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Get a token from the cache, or load it if the cached token is missing or
+     * expired.
+     * @param key
+     *            token key
+     * @param lifetime
+     *            token lifetime in milliseconds, when the token is loaded
+     * @param loader
+     *            used to load the token
+     */
+    public String get(String key, long lifetime, Loader loader) throws HttpClientException {
+        final Entry entry;
+        final Load load;
+        final boolean loadNow;
+        final String previousToken;
+        synchronized (this) {
+            Entry e = entries.get(key);
+            if (e == null) {
+                e = new Entry();
+                entries.put(key, e);
+            }
+            entry = e;
+
+            final long now = SystemClock.elapsedRealtime();
+            if (entry.token != null && now < entry.expiryTime) {
+                if (now >= entry.refreshTime && entry.pendingLoad == null) {
+                    refresh(key, entry, lifetime, loader);
+                }
+                return entry.token;
+            }
+
+            previousToken = entry.token;
+            loadNow = entry.pendingLoad == null;
+            if (loadNow) {
+                entry.pendingLoad = new Load();
+            }
+            load = entry.pendingLoad;
+        }
+
+        if (loadNow) {
+            load(entry, load, previousToken, lifetime, loader);
+        } else {
+            try {
+                load.done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new HttpClientException("Authentication interrupted", e);
+            }
+        }
+        if (load.error != null) {
+            throw load.error;
+        }
+        return load.token;
+    }
+
+    /**
+     * Remove a token from the cache. The token is only removed if it is the
+     * cached token for this key, unless <code>token</code> is
+     * <code>null</code>.
+     */
+    public synchronized void invalidate(String key, String token) {
+        final Entry entry = entries.get(key);
+        if (entry != null && (token == null || token.equals(entry.token))) {
+            entry.token = null;
+        }
+    }
+
+    private void refresh(final String key, final Entry entry, final long lifetime, final Loader loader) {
+        final Load load = new Load();
+        final String previousToken = entry.token;
+        entry.pendingLoad = load;
+        getRefreshExecutor().execute(new Runnable() {
+            public void run() {
+                load(entry, load, previousToken, lifetime, loader);
+                if (load.error != null) {
+                    // The current token is used until it expires.
+                    Log.w(TAG, "Failed to refresh authentication token " + key, load.error);
+                }
+            }
+        });
+    }
+
+    private void load(Entry entry, Load load, String previousToken, long lifetime, Loader loader) {
+        try {
+            load.token = loader.loadToken(previousToken);
+            if (load.token == null) {
+                load.error = new HttpClientException("Authentication failed");
+            }
+        } catch (HttpClientException e) {
+            load.error = e;
+        } catch (RuntimeException e) {
+            load.error = new HttpClientException("Authentication failed", e);
+        }
+
+        synchronized (this) {
+            entry.pendingLoad = null;
+            if (load.error == null) {
+                final long now = SystemClock.elapsedRealtime();
+                entry.token = load.token;
+                entry.expiryTime = now + lifetime;
+                entry.refreshTime = now + (long) (lifetime * REFRESH_RATIO);
+            }
+        }
+        load.done.countDown();
+    }
+
+    private synchronized ExecutorService getRefreshExecutor() {
+        if (refreshExecutor == null) {
+            refreshExecutor = new ThreadPoolExecutor(0, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            final Thread t = new Thread(r, TAG + "-auth");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+        }
+        return refreshExecutor;
+    }
+
+    /**
+     * Load a token when it is not cached.
+     * @author Pixmob
+     */
+    interface Loader {
+        /**
+         * Load a new token.
+         * @param previousToken
+         *            expired token, or token refreshed in the background: the
+         *            loader must not return it again. May be <code>null</code>.
+         */
+        String loadToken(String previousToken) throws HttpClientException;
+    }
+
+    /**
+     * Cached token.
+     * @author Pixmob
+     */
+    private static class Entry {
+        String token;
+        long expiryTime;
+        long refreshTime;
+        Load pendingLoad;
+    }
+
+    /**
+     * Token load in progress.
+     * @author Pixmob
+     */
+    private static class Load {
+        final CountDownLatch done = new CountDownLatch(1);
+        String token;
+        HttpClientException error;
+    }
+}
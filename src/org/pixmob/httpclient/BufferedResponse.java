@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.httpclient;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Http response fully read in memory. The payload can be read several times.
+ * @author Pixmob
+ */
+final class BufferedResponse {
+    private final int statusCode;
+    private final Map<String, List<String>> headers;
+    private final byte[] payload;
+
+    public BufferedResponse(final int statusCode, final Map<String, List<String>> headers, final byte[] payload) {
+        this.statusCode = statusCode;
+        this.headers = headers;
+        this.payload = payload;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    public Map<String, List<String>> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * Open a new stream for reading the payload.
+     */
+    public InputStream openPayload() {
+        return new ByteArrayInputStream(payload);
+    }
+}
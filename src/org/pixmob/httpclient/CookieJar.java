@@ -0,0 +1,369 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.httpclient;
+
+import java.io.File;
+import java.net.URL;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Thread-safe cookie storage, following the rules from RFC 6265. Cookies are
+ * indexed by domain, and they are only sent to matching hosts and paths. The
+ * <code>Cookie</code> header value is computed once for a given URL, until
+ * cookies are updated or expire.
+ * @author Pixmob
+ */
+final class CookieJar {
+    private static final int MAX_CACHED_HEADERS = 64;
+    private static final String[] DATE_FORMATS = { "EEE, dd MMM yyyy HH:mm:ss zzz", "EEE, dd-MMM-yyyy HH:mm:ss zzz",
+            "EEE, dd-MMM-yy HH:mm:ss zzz", "EEE MMM d HH:mm:ss yyyy" };
+    private static final Comparator<Cookie> COOKIE_ORDER = new Comparator<Cookie>() {
+        public int compare(Cookie c1, Cookie c2) {
+            // Cookies with longer paths are listed first.
+            return c2.path.length() - c1.path.length();
+        }
+    };
+    private static final Map<File, CookieJar> PERSISTENT_INSTANCES = new HashMap<File, CookieJar>(1);
+    private final Map<String, List<Cookie>> cookiesByDomain = new ConcurrentHashMap<String, List<Cookie>>(8);
+    private final Map<String, CookieHeader> cookieHeaders = new ConcurrentHashMap<String, CookieHeader>(8);
+    private final PersistentCookieStore persistentStore;
+    private volatile boolean loaded;
+    private volatile int version;
+
+    /**
+     * Create a cookie jar which is only stored in memory.
+     */
+    public CookieJar() {
+        this(null);
+    }
+
+    private CookieJar(final PersistentCookieStore persistentStore) {
+        this.persistentStore = persistentStore;
+        loaded = persistentStore == null;
+    }
+
+    /**
+     * Get the cookie jar stored in a file. Every {@link HttpClient} instance
+     * using the same file shares the same cookie jar. Cookies are loaded when
+     * the cookie jar is first used.
+     */
+    public static CookieJar getPersistentInstance(File file, Platform platform) {
+        synchronized (PERSISTENT_INSTANCES) {
+            CookieJar cookieJar = PERSISTENT_INSTANCES.get(file);
+            if (cookieJar == null) {
+                cookieJar = new CookieJar(new PersistentCookieStore(file, platform));
+                PERSISTENT_INSTANCES.put(file, cookieJar);
+            }
+            return cookieJar;
+        }
+    }
+
+    /**
+     * Return <code>true</code> if cookies are stored in a file.
+     */
+    public boolean isPersistent() {
+        return persistentStore != null;
+    }
+
+    /**
+     * Store cookies from <code>Set-Cookie</code> response headers.
+     */
+    public synchronized void store(URL url, List<String> setCookieHeaders) {
+        ensureLoaded();
+        final String host = url.getHost().toLowerCase(Locale.US);
+        final long now = System.currentTimeMillis();
+        for (final String setCookieHeader : setCookieHeaders) {
+            final Cookie cookie = parse(setCookieHeader, host, url.getPath(), now);
+            if (cookie != null) {
+                add(cookie, now);
+                if (persistentStore != null) {
+                    persistentStore.write(cookie);
+                }
+            }
+        }
+
+        // Cached header values are now outdated.
+        ++version;
+    }
+
+    /**
+     * Add a cookie, replacing a cookie with the same name and path. An expired
+     * cookie removes the cookie it replaces.
+     */
+    private void add(Cookie cookie, long now) {
+        final List<Cookie> oldCookies = cookiesByDomain.get(cookie.domain);
+        final List<Cookie> newCookies = new ArrayList<Cookie>(oldCookies == null ? 1 : oldCookies.size() + 1);
+        if (oldCookies != null) {
+            for (final Cookie oldCookie : oldCookies) {
+                if (!oldCookie.name.equals(cookie.name) || !oldCookie.path.equals(cookie.path)) {
+                    newCookies.add(oldCookie);
+                }
+            }
+        }
+        if (cookie.expiryTime == -1 || cookie.expiryTime > now) {
+            newCookies.add(cookie);
+        }
+
+        // Lists are never updated once published: readers do not need
+        // any lock.
+        if (newCookies.isEmpty()) {
+            cookiesByDomain.remove(cookie.domain);
+        } else {
+            cookiesByDomain.put(cookie.domain, Collections.unmodifiableList(newCookies));
+        }
+    }
+
+    /**
+     * Load persistent cookies, if this is not already done.
+     */
+    private void ensureLoaded() {
+        if (!loaded) {
+            synchronized (this) {
+                if (!loaded) {
+                    final long now = System.currentTimeMillis();
+                    for (final Cookie cookie : persistentStore.load()) {
+                        add(cookie, now);
+                    }
+                    loaded = true;
+                    ++version;
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove every cookie.
+     */
+    public synchronized void clear() {
+        loaded = true;
+        cookiesByDomain.clear();
+        if (persistentStore != null) {
+            persistentStore.clear();
+        }
+        ++version;
+    }
+
+    /**
+     * Get the <code>Cookie</code> header value for a request, or
+     * <code>null</code> if there is no cookie to send.
+     */
+    public String getCookieHeader(URL url) {
+        ensureLoaded();
+        final String key = url.getProtocol() + "://" + url.getHost().toLowerCase(Locale.US) + url.getPath();
+        final long now = System.currentTimeMillis();
+        final int currentVersion = version;
+        CookieHeader cookieHeader = cookieHeaders.get(key);
+        if (cookieHeader == null || cookieHeader.version != currentVersion || cookieHeader.expiryTime <= now) {
+            final List<Cookie> cookies = getMatchingCookies(url, now);
+            long expiryTime = Long.MAX_VALUE;
+            final StringBuilder buf = new StringBuilder(64);
+            for (final Cookie cookie : cookies) {
+                if (buf.length() != 0) {
+                    buf.append("; ");
+                }
+                buf.append(cookie.name).append('=').append(cookie.value);
+                if (cookie.expiryTime != -1) {
+                    expiryTime = Math.min(expiryTime, cookie.expiryTime);
+                }
+            }
+            cookieHeader = new CookieHeader(buf.length() == 0 ? null : buf.toString(), expiryTime, currentVersion);
+
+            if (cookieHeaders.size() >= MAX_CACHED_HEADERS) {
+                cookieHeaders.clear();
+            }
+            cookieHeaders.put(key, cookieHeader);
+        }
+        return cookieHeader.value;
+    }
+
+    /**
+     * Get cookies sent with a request, by name.
+     */
+    public Map<String, String> getCookies(URL url) {
+        ensureLoaded();
+        final List<Cookie> cookies = getMatchingCookies(url, System.currentTimeMillis());
+        final Map<String, String> cookieValues = new HashMap<String, String>(cookies.size());
+        for (int i = cookies.size() - 1; i >= 0; --i) {
+            // Cookies with longer paths win.
+            final Cookie cookie = cookies.get(i);
+            cookieValues.put(cookie.name, cookie.value);
+        }
+        return cookieValues;
+    }
+
+    private List<Cookie> getMatchingCookies(URL url, long now) {
+        final String host = url.getHost().toLowerCase(Locale.US);
+        final String path = url.getPath().length() == 0 ? "/" : url.getPath();
+        final boolean secure = "https".equals(url.getProtocol());
+        final List<Cookie> matchingCookies = new ArrayList<Cookie>(4);
+
+        // Look up cookies for the host, and for every parent domain.
+        boolean parentDomain = false;
+        for (String domain = host; domain != null; parentDomain = true) {
+            final List<Cookie> cookies = cookiesByDomain.get(domain);
+            if (cookies != null) {
+                for (final Cookie cookie : cookies) {
+                    if ((cookie.expiryTime == -1 || cookie.expiryTime > now) && !(cookie.hostOnly && parentDomain)
+                            && (!cookie.secure || secure) && pathMatches(path, cookie.path)) {
+                        matchingCookies.add(cookie);
+                    }
+                }
+            }
+            final int i = domain.indexOf('.');
+            domain = i == -1 ? null : domain.substring(i + 1);
+        }
+        Collections.sort(matchingCookies, COOKIE_ORDER);
+        return matchingCookies;
+    }
+
+    /**
+     * Parse a <code>Set-Cookie</code> header, or return <code>null</code> if
+     * the cookie is invalid or does not match the host.
+     */
+    private static Cookie parse(String setCookieHeader, String host, String requestPath, long now) {
+        final String[] parts = setCookieHeader.split(";");
+        final int i = parts[0].indexOf('=');
+        if (i < 1) {
+            return null;
+        }
+        final String name = parts[0].substring(0, i).trim();
+        final String value = parts[0].substring(i + 1).trim();
+
+        String domain = null;
+        String path = null;
+        long expiryTime = -1;
+        boolean secure = false;
+        boolean maxAgeSet = false;
+        for (int j = 1; j < parts.length; ++j) {
+            final String attr = parts[j].trim();
+            final int k = attr.indexOf('=');
+            final String attrName = (k == -1 ? attr : attr.substring(0, k)).trim();
+            final String attrValue = k == -1 ? "" : attr.substring(k + 1).trim();
+            if ("Domain".equalsIgnoreCase(attrName)) {
+                domain = attrValue.startsWith(".") ? attrValue.substring(1) : attrValue;
+                domain = domain.toLowerCase(Locale.US);
+            } else if ("Path".equalsIgnoreCase(attrName)) {
+                path = attrValue;
+            } else if ("Max-Age".equalsIgnoreCase(attrName)) {
+                try {
+                    final long maxAge = Long.parseLong(attrValue);
+                    expiryTime = maxAge <= 0 ? 0 : now + maxAge * 1000L;
+                    maxAgeSet = true;
+                } catch (NumberFormatException ignore) {
+                }
+            } else if ("Expires".equalsIgnoreCase(attrName) && !maxAgeSet) {
+                // Max-Age has precedence over Expires.
+                final long expires = parseDate(attrValue);
+                if (expires != -1) {
+                    expiryTime = Math.max(0, expires);
+                }
+            } else if ("Secure".equalsIgnoreCase(attrName)) {
+                secure = true;
+            }
+        }
+
+        final boolean hostOnly = domain == null || domain.length() == 0;
+        if (hostOnly) {
+            domain = host;
+        } else if (!domainMatches(host, domain) || domain.indexOf('.') == -1 && !domain.equals(host)) {
+            // A server cannot set cookies for another domain, or for a
+            // top-level domain.
+            return null;
+        }
+        if (path == null || !path.startsWith("/")) {
+            path = getDefaultPath(requestPath);
+        }
+        return new Cookie(name, value, domain, path, expiryTime, hostOnly, secure);
+    }
+
+    private static boolean domainMatches(String host, String domain) {
+        return host.equals(domain) || host.endsWith("." + domain) && !Character.isDigit(host.charAt(host.length() - 1));
+    }
+
+    private static boolean pathMatches(String requestPath, String cookiePath) {
+        if (!requestPath.startsWith(cookiePath)) {
+            return false;
+        }
+        return requestPath.length() == cookiePath.length() || cookiePath.endsWith("/")
+                || requestPath.charAt(cookiePath.length()) == '/';
+    }
+
+    private static String getDefaultPath(String requestPath) {
+        final int i = requestPath.lastIndexOf('/');
+        return i < 1 ? "/" : requestPath.substring(0, i);
+    }
+
+    private static long parseDate(String date) {
+        for (final String dateFormat : DATE_FORMATS) {
+            final SimpleDateFormat format = new SimpleDateFormat(dateFormat, Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("GMT"));
+            try {
+                return format.parse(date).getTime();
+            } catch (ParseException ignore) {
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Cookie received from a server.
+     */
+    static final class Cookie {
+        final String name;
+        final String value;
+        final String domain;
+        final String path;
+        final long expiryTime;
+        final boolean hostOnly;
+        final boolean secure;
+
+        public Cookie(final String name, final String value, final String domain, final String path,
+                final long expiryTime, final boolean hostOnly, final boolean secure) {
+            this.name = name;
+            this.value = value;
+            this.domain = domain;
+            this.path = path;
+            this.expiryTime = expiryTime;
+            this.hostOnly = hostOnly;
+            this.secure = secure;
+        }
+    }
+
+    /**
+     * Cached <code>Cookie</code> header value.
+     */
+    private static final class CookieHeader {
+        final String value;
+        final long expiryTime;
+        final int version;
+
+        public CookieHeader(final String value, final long expiryTime, final int version) {
+            this.value = value;
+            this.expiryTime = expiryTime;
+            this.version = version;
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.httpclient;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+
+import android.os.Build;
+
+/**
+ * {@link SSLSocketFactory} implementation using custom SSL certificates. A
+ * single instance is shared by every request: building a {@link SSLContext} is
+ * expensive, and SSL sessions can only be resumed by sockets created from the
+ * same context.
+ * @author Pixmob
+ */
+class CustomSSLSocketFactory extends SSLSocketFactory {
+    private static final AtomicInteger SESSION_HITS = new AtomicInteger();
+    private static final AtomicInteger SESSION_MISSES = new AtomicInteger();
+    private static CustomSSLSocketFactory instance;
+    private static int sessionCacheSize = -1;
+    private static int sessionTimeout = -1;
+    private final SSLSocketFactory delegate;
+    private final SSLSessionContext sessionContext;
+    private final boolean legacyHostnameResolution;
+
+    private CustomSSLSocketFactory(final SSLSocketFactory delegate, final SSLSessionContext sessionContext,
+            final boolean legacyHostnameResolution) {
+        this.delegate = delegate;
+        this.sessionContext = sessionContext;
+        this.legacyHostnameResolution = legacyHostnameResolution;
+        configureSessionContext();
+    }
+
+    /**
+     * Get the shared instance, creating it on first use.
+     */
+    public static synchronized CustomSSLSocketFactory getInstance(Platform platform) throws IOException {
+        if (instance == null) {
+            final SSLContext sslContext;
+            try {
+                // Load SSL certificates:
+                // http://nelenkov.blogspot.com/2011/12/using-custom-certificate-trust-store-on.html
+                final KeyStore keyStore = platform.loadTrustStore();
+                final TrustManager[] trustManagers = keyStore == null ? null
+                        : new TrustManager[] { new CustomTrustManager(keyStore) };
+
+                // Init SSL connection with custom certificates.
+                sslContext = SSLContext.getInstance("TLS");
+                sslContext.init(null, trustManagers, new SecureRandom());
+            } catch (GeneralSecurityException e) {
+                final IOException ioe = new IOException("Failed to initialize SSL engine");
+                ioe.initCause(e);
+                throw ioe;
+            }
+            instance = new CustomSSLSocketFactory(sslContext.getSocketFactory(),
+                    sslContext.getClientSessionContext(),
+                    platform.getSdkVersion() < Build.VERSION_CODES.ICE_CREAM_SANDWICH);
+        }
+        return instance;
+    }
+
+    /**
+     * Set the maximum number of SSL sessions kept for resumption. A negative
+     * value keeps the platform default, and <code>0</code> means no limit.
+     */
+    public static synchronized void setSessionCacheSize(int size) {
+        sessionCacheSize = size;
+        if (instance != null) {
+            instance.configureSessionContext();
+        }
+    }
+
+    /**
+     * Set the time in seconds a SSL session can be resumed. A negative value
+     * keeps the platform default, and <code>0</code> means no limit.
+     */
+    public static synchronized void setSessionTimeout(int seconds) {
+        sessionTimeout = seconds;
+        if (instance != null) {
+            instance.configureSessionContext();
+        }
+    }
+
+    /**
+     * Get the number of SSL handshakes which resumed a cached session.
+     */
+    public static int getSessionHits() {
+        return SESSION_HITS.get();
+    }
+
+    /**
+     * Get the number of SSL handshakes which negotiated a new session.
+     */
+    public static int getSessionMisses() {
+        return SESSION_MISSES.get();
+    }
+
+    private void configureSessionContext() {
+        if (sessionContext == null) {
+            return;
+        }
+        if (sessionCacheSize >= 0) {
+            sessionContext.setSessionCacheSize(sessionCacheSize);
+        }
+        if (sessionTimeout >= 0) {
+            sessionContext.setSessionTimeout(sessionTimeout);
+        }
+    }
+
+    /**
+     * Count session resumptions for a new socket. A session created before
+     * the socket was cached by a previous handshake. The handshake is
+     * reported to the call opening the socket, if any.
+     */
+    private static Socket track(Socket socket) {
+        if (socket instanceof SSLSocket) {
+            final long socketCreationTime = System.currentTimeMillis();
+            final HttpCall call = HttpCall.getCurrent();
+            if (call != null) {
+                call.secureConnectStart();
+            }
+            ((SSLSocket) socket).addHandshakeCompletedListener(new HandshakeCompletedListener() {
+                public void handshakeCompleted(HandshakeCompletedEvent event) {
+                    if (call != null) {
+                        call.secureConnectEnd();
+                    }
+                    if (event.getSession().getCreationTime() < socketCreationTime) {
+                        SESSION_HITS.incrementAndGet();
+                    } else {
+                        SESSION_MISSES.incrementAndGet();
+                    }
+                }
+            });
+        }
+        return socket;
+    }
+
+    private static void injectHostname(InetAddress address, String host) {
+        try {
+            Field field = InetAddress.class.getDeclaredField("hostName");
+            field.setAccessible(true);
+            field.set(address, host);
+        } catch (Exception ignored) {
+        }
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException, UnknownHostException {
+        if (!legacyHostnameResolution) {
+            return track(delegate.createSocket(host, port));
+        }
+
+        // HttpsURLConnection prior to ICS lets the socket factory connect
+        // the socket: the host is resolved here, and IPv6 and IPv4 addresses
+        // are raced.
+        final HttpCall call = HttpCall.getCurrent();
+        final InetAddress[] addresses = call != null ? call.resolve(host) : InetAddress.getAllByName(host);
+        if (call != null) {
+            call.connectStart();
+        }
+        final Socket socket = DualStackConnector.connect(host, addresses, port,
+            call != null ? call.getConnectTimeout() : 0);
+        if (call != null) {
+            call.connectEnd();
+        }
+        try {
+            return createSocket(socket, host, port, true);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+        return track(delegate.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException,
+            UnknownHostException {
+        return track(delegate.createSocket(host, port, localHost, localPort));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+            throws IOException {
+        return track(delegate.createSocket(address, port, localAddress, localPort));
+    }
+
+    @Override
+    public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+        if (legacyHostnameResolution) {
+            // Fix slow read:
+            // http://code.google.com/p/android/issues/detail?id=13117
+            // Prior to ICS, the host name is still resolved even if we already
+            // know its IP address, for each connection.
+            injectHostname(s.getInetAddress(), host);
+        }
+        return track(delegate.createSocket(s, host, port, autoClose));
+    }
+
+    @Override
+    public String[] getDefaultCipherSuites() {
+        return delegate.getDefaultCipherSuites();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites() {
+        return delegate.getSupportedCipherSuites();
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.httpclient;
+
+import static org.pixmob.httpclient.Constants.TAG;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache for host addresses. A host is resolved by a single thread, while
+ * concurrent lookups for the same host wait for the result. An expired entry
+ * is still returned during another lifetime, while the host is resolved again
+ * in the background. A lookup failure is cached for a short time, so that
+ * requests to an unknown host do not wait for the resolver again: the next
+ * successful lookup replaces it.
+ * @author Pixmob
+ */
+final class DnsCache {
+    private static final int MAX_ENTRIES = 128;
+    private static final long FAILURE_TTL_NANOS = 2L * 1000 * 1000 * 1000;
+    private static ExecutorService resolveExecutor;
+    private final long ttlNanos;
+    private final Map<String, HostEntry> entries = new LinkedHashMap<String, HostEntry>(8, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, HostEntry> eldest) {
+            return size() > MAX_ENTRIES && eldest.getValue().pendingLookup == null;
+        }
+    };
+
+    /**
+     * @param ttl
+     *            time in milliseconds a resolved address is used
+     */
+    public DnsCache(final long ttl) {
+        ttlNanos = ttl * 1000 * 1000;
+    }
+
+    /**
+     * Get host addresses.
+     * @throws UnknownHostException
+     *             if the host is unknown
+     */
+    public InetAddress[] lookup(String host) throws UnknownHostException {
+        final FutureTask<InetAddress[]> lookup;
+        final boolean lookupNow;
+        synchronized (this) {
+            HostEntry entry = entries.get(host);
+            if (entry != null && entry.error != null && System.nanoTime() - entry.expiryTime < 0) {
+                final UnknownHostException e = new UnknownHostException(host);
+                e.initCause(entry.error);
+                throw e;
+            }
+            if (entry != null && entry.addresses != null) {
+                final long now = System.nanoTime();
+                if (now - entry.expiryTime < 0) {
+                    return entry.addresses;
+                }
+                if (entry.addresses != null && now - entry.expiryTime < ttlNanos) {
+                    // Use the expired addresses while the host is resolved
+                    // again.
+                    if (entry.pendingLookup == null) {
+                        getResolveExecutor().execute(newLookup(host, entry));
+                    }
+                    return entry.addresses;
+                }
+            } else if (entry == null) {
+                entry = new HostEntry();
+                entries.put(host, entry);
+            }
+
+            lookupNow = entry.pendingLookup == null;
+            lookup = lookupNow ? newLookup(host, entry) : entry.pendingLookup;
+        }
+
+        if (lookupNow) {
+            lookup.run();
+        }
+        try {
+            return lookup.get();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof UnknownHostException) {
+                throw (UnknownHostException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw (Error) cause;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            final UnknownHostException uhe = new UnknownHostException(host);
+            uhe.initCause(e);
+            throw uhe;
+        }
+    }
+
+    /**
+     * Resolve a host in the background, unless its addresses are cached.
+     */
+    public synchronized void prefetch(String host) {
+        HostEntry entry = entries.get(host);
+        if (entry == null) {
+            entry = new HostEntry();
+            entries.put(host, entry);
+        } else if (entry.pendingLookup != null
+                || (entry.addresses != null || entry.error != null) && System.nanoTime() - entry.expiryTime < 0) {
+            return;
+        }
+        getResolveExecutor().execute(newLookup(host, entry));
+    }
+
+    private FutureTask<InetAddress[]> newLookup(final String host, final HostEntry entry) {
+        final FutureTask<InetAddress[]> lookup = new FutureTask<InetAddress[]>(new Callable<InetAddress[]>() {
+            public InetAddress[] call() throws UnknownHostException {
+                try {
+                    final InetAddress[] addresses = InetAddress.getAllByName(host);
+                    update(host, entry, addresses, null);
+                    return addresses;
+                } catch (UnknownHostException e) {
+                    update(host, entry, null, e);
+                    throw e;
+                } catch (RuntimeException e) {
+                    update(host, entry, null, null);
+                    throw e;
+                }
+            }
+        });
+        entry.pendingLookup = lookup;
+        return lookup;
+    }
+
+    /**
+     * Update an entry after a lookup.
+     * @param error
+     *            lookup failure to cache, or <code>null</code>
+     */
+    private synchronized void update(String host, HostEntry entry, InetAddress[] addresses,
+            UnknownHostException error) {
+        entry.pendingLookup = null;
+        final long now = System.nanoTime();
+        if (addresses != null) {
+            entry.addresses = addresses;
+            entry.error = null;
+            entry.expiryTime = now + ttlNanos;
+        } else if (entry.addresses == null || now - entry.expiryTime >= ttlNanos) {
+            // Expired addresses are kept if the lookup fails, since the
+            // network may be down for a short time.
+            if (error != null) {
+                entry.addresses = null;
+                entry.error = error;
+                entry.expiryTime = now + Math.min(ttlNanos, FAILURE_TTL_NANOS);
+            } else if (entries.get(host) == entry) {
+                entries.remove(host);
+            }
+        }
+    }
+
+    private static synchronized ExecutorService getResolveExecutor() {
+        if (resolveExecutor == null) {
+            resolveExecutor = new ThreadPoolExecutor(0, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            final Thread t = new Thread(r, TAG + "-dns");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+        }
+        return resolveExecutor;
+    }
+
+    /**
+     * Cached host addresses, or lookup failure.
+     * @author Pixmob
+     */
+    private static class HostEntry {
+        InetAddress[] addresses;
+        UnknownHostException error;
+        long expiryTime;
+        FutureTask<InetAddress[]> pendingLookup;
+    }
+}
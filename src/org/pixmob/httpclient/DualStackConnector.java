@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.httpclient;
+
+import static org.pixmob.httpclient.Constants.TAG;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Open sockets to dual-stack hosts for HTTPS connections prior to ICS, as
+ * described in RFC 8305 ("Happy Eyeballs"). Host addresses are tried in turn,
+ * alternating IPv6 and IPv4, without waiting for an attempt to fail before the
+ * next address is tried: a broken route only delays the connection by a few
+ * hundred milliseconds. The first connected socket is kept, and its address
+ * family is used without a race for the next connections to the same host.
+ * <p>
+ * Prior to ICS, {@link javax.net.ssl.HttpsURLConnection} asks the socket
+ * factory to connect the socket. Other connections are opened by the platform,
+ * which does not let the library choose the address.
+ * </p>
+ * @author Pixmob
+ */
+final class DualStackConnector {
+    /**
+     * Time in milliseconds before the next address is tried, as recommended
+     * by RFC 8305.
+     */
+    private static final long CONNECTION_ATTEMPT_DELAY = 250;
+    private static final long PREFERENCE_TTL_NANOS = 10L * 60 * 1000 * 1000 * 1000;
+    private static final int MAX_HOSTS = 64;
+    private static final Map<String, Preference> PREFERENCES = new LinkedHashMap<String, Preference>(8, 0.75f,
+            true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Preference> eldest) {
+            return size() > MAX_HOSTS;
+        }
+    };
+    private static ExecutorService connectExecutor;
+
+    private DualStackConnector() {
+    }
+
+    /**
+     * Open a socket to a host.
+     * @param host
+     *            host name, used to remember the address family to use
+     * @param addresses
+     *            host addresses, in the order returned by the resolver
+     * @param port
+     *            port to connect to
+     * @param timeout
+     *            connect timeout in milliseconds for each address, or
+     *            <code>0</code> for no timeout
+     * @throws IOException
+     *             if no address could be connected
+     */
+    public static Socket connect(String host, InetAddress[] addresses, int port, int timeout) throws IOException {
+        if (addresses.length == 1) {
+            return connect(addresses[0], port, timeout);
+        }
+
+        int ipv6Count = 0;
+        for (final InetAddress address : addresses) {
+            if (address instanceof Inet6Address) {
+                ipv6Count++;
+            }
+        }
+        final boolean dualStack = ipv6Count != 0 && ipv6Count != addresses.length;
+        final Boolean preferIpv6 = dualStack ? getPreferredFamily(host) : null;
+        final List<InetAddress> candidates;
+        if (preferIpv6 == null) {
+            candidates = sort(addresses, addresses[0] instanceof Inet6Address);
+        } else {
+            // The family which connected last time is used without a race:
+            // the other family is only tried if every preferred address
+            // fails.
+            candidates = new ArrayList<InetAddress>(addresses.length);
+            for (final InetAddress address : addresses) {
+                if (address instanceof Inet6Address == preferIpv6) {
+                    try {
+                        return connect(address, port, timeout);
+                    } catch (InterruptedIOException e) {
+                        throw e;
+                    } catch (IOException ignore) {
+                    }
+                } else {
+                    candidates.add(address);
+                }
+            }
+            forgetPreferredFamily(host);
+        }
+        final Socket socket = race(candidates, port, timeout);
+        if (dualStack) {
+            setPreferredFamily(host, socket.getInetAddress() instanceof Inet6Address);
+        }
+        return socket;
+    }
+
+    private static Socket connect(InetAddress address, int port, int timeout) throws IOException {
+        final Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(address, port), timeout);
+        } catch (IOException e) {
+            closeQuietly(socket);
+            throw e;
+        }
+        return socket;
+    }
+
+    /**
+     * Connect to addresses in turn, starting the next attempt when the
+     * previous one fails or takes longer than
+     * {@link #CONNECTION_ATTEMPT_DELAY}. The first connected socket is
+     * returned, while other attempts are cancelled.
+     */
+    private static Socket race(List<InetAddress> addresses, int port, int timeout) throws IOException {
+        final BlockingQueue<Attempt> completed = new LinkedBlockingQueue<Attempt>();
+        final List<Attempt> attempts = new ArrayList<Attempt>(addresses.size());
+        Attempt winner = null;
+        IOException lastError = null;
+        try {
+            int failed = 0;
+            while (failed < addresses.size()) {
+                Attempt attempt;
+                if (attempts.size() < addresses.size()) {
+                    attempt = new Attempt(addresses.get(attempts.size()), port, timeout, completed);
+                    attempts.add(attempt);
+                    getConnectExecutor().execute(attempt);
+                    attempt = attempts.size() < addresses.size() ? completed.poll(CONNECTION_ATTEMPT_DELAY,
+                        TimeUnit.MILLISECONDS) : completed.take();
+                } else {
+                    attempt = completed.take();
+                }
+                for (; attempt != null; attempt = completed.poll()) {
+                    if (attempt.error == null) {
+                        winner = attempt;
+                        return attempt.socket;
+                    }
+                    lastError = attempt.error;
+                    failed++;
+                }
+            }
+        } catch (InterruptedException e) {
+            final InterruptedIOException iioe = new InterruptedIOException("Connection interrupted");
+            iioe.initCause(e);
+            throw iioe;
+        } finally {
+            for (final Attempt attempt : attempts) {
+                if (attempt != winner) {
+                    closeQuietly(attempt.socket);
+                }
+            }
+        }
+        throw lastError;
+    }
+
+    /**
+     * Sort addresses so that address families alternate, starting with the
+     * given family.
+     */
+    private static List<InetAddress> sort(InetAddress[] addresses, boolean ipv6First) {
+        final List<InetAddress> first = new ArrayList<InetAddress>(addresses.length);
+        final List<InetAddress> second = new ArrayList<InetAddress>(addresses.length);
+        for (final InetAddress address : addresses) {
+            (address instanceof Inet6Address == ipv6First ? first : second).add(address);
+        }
+        final List<InetAddress> sorted = new ArrayList<InetAddress>(addresses.length);
+        for (int i = 0; i < first.size() || i < second.size(); ++i) {
+            if (i < first.size()) {
+                sorted.add(first.get(i));
+            }
+            if (i < second.size()) {
+                sorted.add(second.get(i));
+            }
+        }
+        return sorted;
+    }
+
+    private static Boolean getPreferredFamily(String host) {
+        synchronized (PREFERENCES) {
+            final Preference preference = PREFERENCES.get(host);
+            if (preference == null) {
+                return null;
+            }
+            if (System.nanoTime() - preference.expiryTime >= 0) {
+                PREFERENCES.remove(host);
+                return null;
+            }
+            return preference.ipv6;
+        }
+    }
+
+    private static void forgetPreferredFamily(String host) {
+        synchronized (PREFERENCES) {
+            PREFERENCES.remove(host);
+        }
+    }
+
+    private static void setPreferredFamily(String host, boolean ipv6) {
+        synchronized (PREFERENCES) {
+            PREFERENCES.put(host, new Preference(ipv6, System.nanoTime() + PREFERENCE_TTL_NANOS));
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    private static synchronized ExecutorService getConnectExecutor() {
+        if (connectExecutor == null) {
+            connectExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            final Thread t = new Thread(r, TAG + "-connect");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+        }
+        return connectExecutor;
+    }
+
+    /**
+     * Address family which connected to a host.
+     * @author Pixmob
+     */
+    private static class Preference {
+        final boolean ipv6;
+        final long expiryTime;
+
+        public Preference(final boolean ipv6, final long expiryTime) {
+            this.ipv6 = ipv6;
+            this.expiryTime = expiryTime;
+        }
+    }
+
+    /**
+     * Connection attempt to a single address.
+     * @author Pixmob
+     */
+    private static class Attempt implements Runnable {
+        final Socket socket = new Socket();
+        final InetAddress address;
+        final int port;
+        final int timeout;
+        final BlockingQueue<Attempt> completed;
+        IOException error;
+
+        public Attempt(final InetAddress address, final int port, final int timeout,
+                final BlockingQueue<Attempt> completed) {
+            this.address = address;
+            this.port = port;
+            this.timeout = timeout;
+            this.completed = completed;
+        }
+
+        public void run() {
+            try {
+                socket.connect(new InetSocketAddress(address, port), timeout);
+            } catch (IOException e) {
+                error = e;
+            }
+            completed.add(this);
+        }
+    }
+}
@@ -21,7 +21,6 @@ import java.net.URLEncoder;
 import java.util.Map;
 
 import android.accounts.Account;
-import android.accounts.AccountManager;
 import android.content.Context;
 
 /**
@@ -35,8 +34,9 @@ import android.content.Context;
  */
 public class GoogleAppEngineAuthenticator extends AbstractAccountAuthenticator {
     public static final String GOOGLE_ACCOUNT_TYPE = "com.google";
+    private static final String AUTH_TOKEN_TYPE = "ah";
     private final String gaeHost;
-    private String authCookieValue;
+    private final ThreadLocal<String> requestAuthCookie = new ThreadLocal<String>();
 
     /**
      * Create a new instance of this authenticator.
@@ -56,10 +56,9 @@ public class GoogleAppEngineAuthenticator extends AbstractAccountAuthenticator {
     }
 
     private String fetchAuthCookie(String authToken, boolean invalidateToken) throws HttpClientException {
-        final AccountManager am = (AccountManager) getContext().getSystemService(Context.ACCOUNT_SERVICE);
         if (invalidateToken) {
             // Invalidate authentication token, and generate a new one.
-            am.invalidateAuthToken(GOOGLE_ACCOUNT_TYPE, authToken);
+            invalidateAuthToken(AUTH_TOKEN_TYPE, authToken);
             authToken = generateAuthToken();
         }
 
@@ -102,20 +101,43 @@ public class GoogleAppEngineAuthenticator extends AbstractAccountAuthenticator {
     }
 
     private String generateAuthToken() throws HttpClientException {
-        return generateAuthToken("ah");
+        return generateAuthToken(AUTH_TOKEN_TYPE);
     }
 
     @Override
     public void onRequest(HttpURLConnection conn) throws Exception {
-        if (authCookieValue == null) {
-            final String authToken = generateAuthToken();
-            final String authCookie = fetchAuthCookie(authToken, false);
-            authCookieValue = "SACSID=" + authCookie;
+        // The authentication cookie is only stored in memory, in order to
+        // prevent security issues. The cookie is shared by authenticators
+        // using the same account and host.
+        final String authCookie = AuthTokenCache.getInstance().get(getAuthCookieKey(),
+                getTokenLifetime(), new AuthTokenCache.Loader() {
+                    public String loadToken(String previousCookie) throws HttpClientException {
+                        // A new login always returns a new cookie.
+                        return fetchAuthCookie(generateAuthToken(), false);
+                    }
+                });
+
+        conn.addRequestProperty("Cookie", "SACSID=" + authCookie);
+
+        // Remember which cookie was sent, in case it is rejected.
+        requestAuthCookie.set(authCookie);
+    }
+
+    @Override
+    public boolean onUnauthorized(HttpURLConnection conn) throws Exception {
+        final String authCookie = requestAuthCookie.get();
+        if (authCookie == null) {
+            return false;
         }
+        requestAuthCookie.remove();
 
-        // The authentication cookie is only stored in memory, in order to
-        // prevent security issues.
+        // The cookie is only removed if it was not refreshed yet by a
+        // concurrent request: a single new cookie is fetched.
+        AuthTokenCache.getInstance().invalidate(getAuthCookieKey(), authCookie);
+        return true;
+    }
 
-        conn.addRequestProperty("Cookie", authCookieValue);
+    private String getAuthCookieKey() {
+        return getTokenKey("SACSID:" + gaeHost);
     }
 }
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.httpclient;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * A list of requests executed in the background. Requests are started in
+ * list order, within the concurrency limits of the batch and of the
+ * {@link HttpClient} instance. Results are available in completion order.
+ * @see HttpClient#executeAll(List, int, boolean)
+ * @author Pixmob
+ */
+public final class HttpBatch {
+    private final List<HttpRequestBuilder> requests;
+    private final List<Future<HttpResponse>> futures;
+    private final BlockingQueue<Result> completedResults = new LinkedBlockingQueue<Result>();
+    private final int maxConcurrentRequests;
+    private final boolean allOrNothing;
+    private int nextRequest;
+    private int runningRequests;
+    private int takenResults;
+    private boolean canceled;
+
+    HttpBatch(final List<HttpRequestBuilder> requests, final int maxConcurrentRequests, final boolean allOrNothing) {
+        this.requests = Collections.unmodifiableList(new ArrayList<HttpRequestBuilder>(requests));
+        this.maxConcurrentRequests = maxConcurrentRequests;
+        this.allOrNothing = allOrNothing;
+        futures = new ArrayList<Future<HttpResponse>>(Collections.<Future<HttpResponse>> nCopies(
+                this.requests.size(), null));
+    }
+
+    /**
+     * Get requests in this batch.
+     */
+    public List<HttpRequestBuilder> getRequests() {
+        return requests;
+    }
+
+    /**
+     * Return <code>true</code> if a failed request cancels the remaining
+     * requests.
+     */
+    public boolean isAllOrNothing() {
+        return allOrNothing;
+    }
+
+    /**
+     * Wait for the next completed request. Results of canceled requests are
+     * returned as well.
+     * @return the next result, or <code>null</code> if every result was
+     *         returned
+     */
+    public Result next() throws InterruptedException {
+        synchronized (this) {
+            if (takenResults == requests.size()) {
+                return null;
+            }
+            ++takenResults;
+        }
+        return completedResults.take();
+    }
+
+    /**
+     * Wait for every request to complete.
+     * @return responses in request order, with <code>null</code> for failed
+     *         requests
+     * @throws HttpClientException
+     *             with the all-or-nothing policy, if a request failed
+     */
+    public List<HttpResponse> getResponses() throws HttpClientException, InterruptedException {
+        final List<HttpResponse> responses = new ArrayList<HttpResponse>(Collections.<HttpResponse> nCopies(
+                requests.size(), null));
+        HttpClientException error = null;
+        for (Result result; (result = next()) != null;) {
+            if (result.isSuccessful()) {
+                responses.set(result.getIndex(), result.getResponse());
+            } else if (error == null) {
+                error = result.error;
+            }
+        }
+        if (allOrNothing && error != null) {
+            throw error;
+        }
+        return responses;
+    }
+
+    /**
+     * Cancel every request which is not completed yet.
+     */
+    public synchronized void cancel() {
+        if (canceled) {
+            return;
+        }
+        canceled = true;
+
+        // Requests which are not started yet are reported as canceled.
+        for (; nextRequest < requests.size(); ++nextRequest) {
+            completedResults.add(new Result(nextRequest, requests.get(nextRequest), null, new HttpClientException(
+                    "Request canceled")));
+        }
+        for (final Future<HttpResponse> future : futures) {
+            if (future != null) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    synchronized void start() {
+        startRequests();
+    }
+
+    private void startRequests() {
+        while (!canceled && nextRequest < requests.size() && runningRequests < maxConcurrentRequests) {
+            final int index = nextRequest++;
+            ++runningRequests;
+            futures.set(index, requests.get(index).executeAsync(new Runnable() {
+                public void run() {
+                    requestDone(index);
+                }
+            }));
+        }
+    }
+
+    private synchronized void requestDone(int index) {
+        --runningRequests;
+        final Future<HttpResponse> future = futures.get(index);
+        HttpResponse response = null;
+        HttpClientException error = null;
+        try {
+            response = future.get();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            error = cause instanceof HttpClientException ? (HttpClientException) cause : new HttpClientException(
+                    "Request failed", cause);
+        } catch (CancellationException e) {
+            error = new HttpClientException("Request canceled");
+        } catch (InterruptedException e) {
+            // Unlikely to happen: the request is completed.
+            Thread.currentThread().interrupt();
+            error = new HttpClientException("Request interrupted", e);
+        }
+        completedResults.add(new Result(index, requests.get(index), response, error));
+
+        if (error != null && allOrNothing) {
+            cancel();
+        } else {
+            startRequests();
+        }
+    }
+
+    /**
+     * Result of a request executed in a batch.
+     * @author Pixmob
+     */
+    public static final class Result {
+        private final int index;
+        private final HttpRequestBuilder request;
+        private final HttpResponse response;
+        private final HttpClientException error;
+
+        Result(final int index, final HttpRequestBuilder request, final HttpResponse response,
+                final HttpClientException error) {
+            this.index = index;
+            this.request = request;
+            this.response = response;
+            this.error = error;
+        }
+
+        /**
+         * Get the request index in the batch.
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        public HttpRequestBuilder getRequest() {
+            return request;
+        }
+
+        /**
+         * Return <code>true</code> if the request was successful.
+         */
+        public boolean isSuccessful() {
+            return error == null;
+        }
+
+        /**
+         * Get the response.
+         * @throws HttpClientException
+         *             if the request failed or was canceled
+         */
+        public HttpResponse getResponse() throws HttpClientException {
+            if (error != null) {
+                throw error;
+            }
+            return response;
+        }
+    }
+}
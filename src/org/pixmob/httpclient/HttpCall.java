@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.httpclient;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * A single request execution, reported to a {@link HttpEventListener}.
+ * @author Pixmob
+ */
+public final class HttpCall {
+    private static final ThreadLocal<HttpCall> CURRENT_CALL = new ThreadLocal<HttpCall>();
+    private final HttpEventListener listener;
+    private final HttpMetrics metrics;
+    private final DnsCache dnsCache;
+    private final int connectTimeout;
+    private final String method;
+    private volatile String uri;
+    private long startTime;
+    private int statusCode = -1;
+    private boolean completed;
+    private boolean failed;
+
+    HttpCall(final HttpClient hc, final String method, final String uri) {
+        listener = hc.getEventListener();
+        metrics = hc.getMetricsRecorder();
+        dnsCache = hc.getDnsCache();
+        connectTimeout = hc.getConnectTimeout();
+        this.method = method;
+        this.uri = uri;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public String getUri() {
+        return uri;
+    }
+
+    void setUri(String uri) {
+        this.uri = uri;
+    }
+
+    /**
+     * Get the call opening a connection from the current thread, or
+     * <code>null</code> if none.
+     */
+    static HttpCall getCurrent() {
+        return CURRENT_CALL.get();
+    }
+
+    static void setCurrent(HttpCall call) {
+        if (call == null) {
+            CURRENT_CALL.remove();
+        } else {
+            CURRENT_CALL.set(call);
+        }
+    }
+
+    void queued() {
+        if (listener != null) {
+            listener.onQueued(this, System.nanoTime());
+        }
+    }
+
+    void start() {
+        startTime = System.nanoTime();
+        if (listener != null) {
+            listener.onStart(this, startTime);
+        }
+    }
+
+    /**
+     * Resolve a host for a socket opened by the library, reporting DNS time.
+     */
+    InetAddress[] resolve(String host) throws UnknownHostException {
+        if (listener != null) {
+            listener.onDnsStart(this, host, System.nanoTime());
+        }
+        try {
+            return lookup(host);
+        } finally {
+            if (listener != null) {
+                listener.onDnsEnd(this, host, System.nanoTime());
+            }
+        }
+    }
+
+    /**
+     * Get host addresses, from the client DNS cache if enabled.
+     */
+    private InetAddress[] lookup(String host) throws UnknownHostException {
+        return dnsCache != null ? dnsCache.lookup(host) : InetAddress.getAllByName(host);
+    }
+
+    /**
+     * Get the connect timeout in milliseconds for each address of a host.
+     */
+    int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    void connectStart() {
+        if (listener != null) {
+            listener.onConnectStart(this, System.nanoTime());
+        }
+    }
+
+    void connectEnd() {
+        if (listener != null) {
+            listener.onConnectEnd(this, System.nanoTime());
+        }
+    }
+
+    void secureConnectStart() {
+        if (listener != null) {
+            listener.onSecureConnectStart(this, System.nanoTime());
+        }
+    }
+
+    void secureConnectEnd() {
+        if (listener != null) {
+            listener.onSecureConnectEnd(this, System.nanoTime());
+        }
+    }
+
+    void responseStart(int statusCode) {
+        this.statusCode = statusCode;
+        if (listener != null) {
+            listener.onResponseStart(this, statusCode, System.nanoTime());
+        }
+    }
+
+    void requestBodyEnd(long byteCount) {
+        if (metrics != null) {
+            metrics.recordBytesSent(byteCount);
+        }
+        if (listener != null) {
+            listener.onRequestBodyEnd(this, byteCount, System.nanoTime());
+        }
+    }
+
+    void responseBodyEnd(long byteCount) {
+        final long now = System.nanoTime();
+        if (metrics != null) {
+            metrics.recordBytesReceived(byteCount);
+            complete(now);
+        }
+        if (listener != null) {
+            listener.onResponseBodyEnd(this, byteCount, now);
+        }
+    }
+
+    void failed(HttpClientException error) {
+        // A timeout is reported before the response handler is invoked, which
+        // may fail again.
+        if (failed) {
+            return;
+        }
+        failed = true;
+        final long now = System.nanoTime();
+        if (metrics != null) {
+            metrics.recordError(error);
+            complete(now);
+        }
+        if (listener != null) {
+            listener.onFailed(this, error, now);
+        }
+    }
+
+    private void complete(long endTime) {
+        // A request is recorded once, even if its response is closed after
+        // a failure.
+        if (!completed) {
+            completed = true;
+            metrics.recordRequest(uri, method, statusCode, endTime - startTime);
+        }
+    }
+
+    /**
+     * Count bytes written to the request content. The request end is reported
+     * when the stream is closed.
+     */
+    OutputStream requestBody(OutputStream out) {
+        return listener == null && metrics == null ? out : new RequestBodyOutputStream(out);
+    }
+
+    /**
+     * Count bytes read from the response content. The response end is
+     * reported when the stream is fully read or closed.
+     */
+    InputStream responseBody(InputStream in) {
+        return listener == null && metrics == null || in == null ? in : new ResponseBodyInputStream(in);
+    }
+
+    /**
+     * Request content stream reporting its size.
+     * @author Pixmob
+     */
+    private class RequestBodyOutputStream extends FilterOutputStream {
+        private long byteCount;
+        private boolean closed;
+
+        public RequestBodyOutputStream(final OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            ++byteCount;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            out.write(buffer, offset, length);
+            byteCount += length;
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+            if (!closed) {
+                closed = true;
+                requestBodyEnd(byteCount);
+            }
+        }
+    }
+
+    /**
+     * Response content stream reporting its size.
+     * @author Pixmob
+     */
+    private class ResponseBodyInputStream extends FilterInputStream {
+        private long byteCount;
+        private boolean ended;
+
+        public ResponseBodyInputStream(final InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = in.read();
+            if (b == -1) {
+                end();
+            } else {
+                ++byteCount;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            final int bytesRead = in.read(buffer, offset, length);
+            if (bytesRead == -1) {
+                end();
+            } else {
+                byteCount += bytesRead;
+            }
+            return bytesRead;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            final long bytesSkipped = in.skip(n);
+            byteCount += bytesSkipped;
+            return bytesSkipped;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                end();
+            }
+        }
+
+        private void end() {
+            if (!ended) {
+                ended = true;
+                responseBodyEnd(byteCount);
+            }
+        }
+    }
+}
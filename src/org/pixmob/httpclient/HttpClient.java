@@ -21,8 +21,8 @@ import static org.pixmob.httpclient.Constants.HTTP_HEAD;
 import static org.pixmob.httpclient.Constants.HTTP_POST;
 import static org.pixmob.httpclient.Constants.HTTP_PUT;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.io.File;
+import java.util.List;
 
 import android.content.Context;
 import android.os.Build;
@@ -32,33 +32,56 @@ import android.os.Build;
  * @author Pixmob
  */
 public final class HttpClient {
-    static {
-        if (Build.VERSION.SDK_INT <= Build.VERSION_CODES.FROYO) {
-            // Disable connection pooling before Froyo:
-            // http://stackoverflow.com/a/4261005/422906
-            System.setProperty("http.keepAlive", "false");
-        }
-    }
-
-    private static final String DEFAULT_USER_AGENT = getDefaultUserAgent();
-    private final Context context;
+    /**
+     * Default time in milliseconds a resolved host address is cached: the DNS
+     * cache is disabled by default.
+     */
+    public static final long DEFAULT_DNS_CACHE_TTL = 0;
+    private final Platform platform;
+    private final boolean keepAliveSupported;
     private int connectTimeout;
     private int readTimeout;
     private String userAgent;
-    private final Map<String, String> inMemoryCookies = new HashMap<String, String>(8);
+    private boolean keepAlive;
+    private int maxInMemoryResponseSize = 64 * 1024;
+    private int maxConcurrentRequests = 16;
+    private int maxConcurrentRequestsPerHost = 4;
+    private HttpRequestDispatcher dispatcher;
+    private HttpRequestCoalescer requestCoalescer;
+    private HttpResponseCache responseCache;
+    private volatile CookieJar cookieJar = new CookieJar();
+    private volatile HttpEventListener eventListener;
+    private volatile HttpTransport transport = HttpTransport.DEFAULT;
+    private volatile DnsCache dnsCache;
+    private long dnsCacheTtl = DEFAULT_DNS_CACHE_TTL;
+    private final HttpMetrics metrics = new HttpMetrics();
+    private volatile boolean metricsEnabled;
 
     /**
      * Create a new instance for this {@link Context}.
      */
     public HttpClient(final Context context) {
-        if (context == null) {
-            throw new IllegalArgumentException("Context cannot be null");
+        this(new AndroidPlatform(context));
+    }
+
+    /**
+     * Create a new instance running on a platform. Code compiled without the
+     * Android classes cannot call this constructor, since it is overloaded
+     * with {@link #HttpClient(Context)}: use
+     * {@link JvmPlatform#newClient(File, File)} instead.
+     * @see JvmPlatform
+     */
+    public HttpClient(final Platform platform) {
+        if (platform == null) {
+            throw new IllegalArgumentException("Platform cannot be null");
         }
-        this.context = context;
+        this.platform = platform;
+        keepAliveSupported = platform.getSdkVersion() > Build.VERSION_CODES.FROYO;
+        keepAlive = keepAliveSupported;
     }
 
-    Context getContext() {
-        return context;
+    Platform getPlatform() {
+        return platform;
     }
 
     /**
@@ -111,6 +134,67 @@ public final class HttpClient {
         return new HttpRequestBuilder(this, uri, HTTP_DELETE);
     }
 
+    /**
+     * Download a file with several concurrent requests, each of them
+     * downloading a part of the file. A part which failed to download is
+     * retried. The file is downloaded with a single request if the server
+     * does not support byte ranges, or if the file is small. Concurrent
+     * requests are limited by {@link #setMaxConcurrentRequestsPerHost(int)}.
+     * @param uri
+     *            file to download
+     * @param file
+     *            where to write the file
+     * @param segments
+     *            maximum number of parts to download
+     */
+    public void download(String uri, File file, int segments) throws HttpClientException {
+        if (uri == null) {
+            throw new IllegalArgumentException("URI cannot be null");
+        }
+        if (file == null) {
+            throw new IllegalArgumentException("File cannot be null");
+        }
+        if (segments < 1) {
+            throw new IllegalArgumentException("Invalid segment count: " + segments);
+        }
+        new SegmentedDownload(this, uri, file, segments).execute();
+    }
+
+    /**
+     * Execute requests in the background, without canceling remaining
+     * requests if a request fails.
+     * @see #executeAll(List, int, boolean)
+     */
+    public HttpBatch executeAll(List<HttpRequestBuilder> requests) {
+        return executeAll(requests, Integer.MAX_VALUE, false);
+    }
+
+    /**
+     * Execute requests in the background. Requests are started in list order,
+     * so that the network is never idle between two requests: connections
+     * are reused as soon as a response is read. Concurrent requests are also
+     * limited by {@link #setMaxConcurrentRequests(int)} and
+     * {@link #setMaxConcurrentRequestsPerHost(int)}.
+     * @param maxConcurrentRequests
+     *            maximum number of requests from this batch running at the
+     *            same time
+     * @param allOrNothing
+     *            if <code>true</code>, a failed request cancels every
+     *            remaining request
+     * @see HttpBatch#next()
+     */
+    public HttpBatch executeAll(List<HttpRequestBuilder> requests, int maxConcurrentRequests, boolean allOrNothing) {
+        if (requests == null) {
+            throw new IllegalArgumentException("Requests cannot be null");
+        }
+        if (maxConcurrentRequests < 1) {
+            throw new IllegalArgumentException("Invalid maximum concurrent requests: " + maxConcurrentRequests);
+        }
+        final HttpBatch batch = new HttpBatch(requests, maxConcurrentRequests, allOrNothing);
+        batch.start();
+        return batch;
+    }
+
     /**
      * Get the connect timeout in seconds.
      */
@@ -150,7 +234,7 @@ public final class HttpClient {
      */
     public String getUserAgent() {
         if (userAgent == null) {
-            return DEFAULT_USER_AGENT;
+            return platform.getDefaultUserAgent();
         }
         return userAgent;
     }
@@ -162,15 +246,364 @@ public final class HttpClient {
         this.userAgent = userAgent;
     }
 
-    Map<String, String> getInMemoryCookies() {
-        return inMemoryCookies;
+    /**
+     * Return <code>true</code> if connections are kept alive between requests.
+     */
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * Set whether connections should be kept alive between requests. When
+     * enabled, a fully read response releases its socket to the platform
+     * connection pool, so that the next request to the same host skips the
+     * TCP and SSL handshakes. This setting is ignored before Gingerbread,
+     * where connection pooling is broken.
+     */
+    public void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive && keepAliveSupported;
+    }
+
+    /**
+     * Get the maximum size in bytes of a response kept in memory.
+     */
+    public int getMaxInMemoryResponseSize() {
+        return maxInMemoryResponseSize;
+    }
+
+    /**
+     * Set the maximum size in bytes of a response kept in memory. When a
+     * request is executed without a response handler, the response is read
+     * before the connection is closed: a response larger than this size is
+     * written to a temporary file in the application cache directory.
+     */
+    public void setMaxInMemoryResponseSize(int maxInMemoryResponseSize) {
+        if (maxInMemoryResponseSize < 0) {
+            throw new IllegalArgumentException("Invalid max in-memory response size: " + maxInMemoryResponseSize);
+        }
+        this.maxInMemoryResponseSize = maxInMemoryResponseSize;
+    }
+
+    /**
+     * Get the maximum number of asynchronous requests running at the same
+     * time.
+     */
+    public int getMaxConcurrentRequests() {
+        return maxConcurrentRequests;
+    }
+
+    /**
+     * Set the maximum number of asynchronous requests running at the same
+     * time. Other requests are queued until a running request is done.
+     * @see HttpRequestBuilder#executeAsync()
+     */
+    public void setMaxConcurrentRequests(int maxConcurrentRequests) {
+        if (maxConcurrentRequests < 1) {
+            throw new IllegalArgumentException("Invalid max concurrent requests: " + maxConcurrentRequests);
+        }
+        this.maxConcurrentRequests = maxConcurrentRequests;
+        promoteRequests();
+    }
+
+    /**
+     * Get the maximum number of asynchronous requests running at the same time
+     * for a single host.
+     */
+    public int getMaxConcurrentRequestsPerHost() {
+        return maxConcurrentRequestsPerHost;
+    }
+
+    /**
+     * Set the maximum number of asynchronous requests running at the same time
+     * for a single host. Other requests to this host are queued until a
+     * running request is done.
+     * @see HttpRequestBuilder#executeAsync()
+     */
+    public void setMaxConcurrentRequestsPerHost(int maxConcurrentRequestsPerHost) {
+        if (maxConcurrentRequestsPerHost < 1) {
+            throw new IllegalArgumentException("Invalid max concurrent requests per host: "
+                    + maxConcurrentRequestsPerHost);
+        }
+        this.maxConcurrentRequestsPerHost = maxConcurrentRequestsPerHost;
+        promoteRequests();
+    }
+
+    /**
+     * Return <code>true</code> if identical requests in flight are coalesced.
+     */
+    public synchronized boolean isRequestCoalescing() {
+        return requestCoalescer != null;
+    }
+
+    /**
+     * Set whether identical requests in flight should be coalesced. When
+     * enabled, concurrent <code>GET</code> and <code>HEAD</code> requests with
+     * the same URI, headers, cookies and request handlers share a single
+     * network exchange. Every caller gets its own copy of the response, which
+     * is read in memory.
+     */
+    public synchronized void setRequestCoalescing(boolean requestCoalescing) {
+        if (!requestCoalescing) {
+            requestCoalescer = null;
+        } else if (requestCoalescer == null) {
+            requestCoalescer = new HttpRequestCoalescer();
+        }
+    }
+
+    /**
+     * Set the maximum size in bytes of the response cache. The cache is stored
+     * in the application cache directory, and it is shared by every
+     * {@link HttpClient} instance. <code>GET</code> responses are cached
+     * according to the <code>Cache-Control</code>, <code>Expires</code> and
+     * <code>Vary</code> headers: a fresh response is read from the cache, and
+     * an outdated one is revalidated with a conditional request. Responses
+     * marked <code>private</code> or <code>no-store</code> are not cached,
+     * neither are responses to requests with an <code>Authorization</code>
+     * header or request cookies. Cookies sent from the cookie jar do not
+     * prevent caching. The cache is disabled for this instance if the size is
+     * <code>0</code>, which is the default.
+     */
+    public synchronized void setResponseCacheSize(long size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Invalid response cache size: " + size);
+        }
+        if (size == 0) {
+            responseCache = null;
+        } else {
+            responseCache = HttpResponseCache.getInstance(new File(platform.getCacheDir(), "httpclient"), size,
+                    platform);
+        }
+    }
+
+    /**
+     * Get the number of requests served by the response cache, without
+     * network access.
+     */
+    public synchronized int getResponseCacheHitCount() {
+        return responseCache == null ? 0 : responseCache.getHitCount();
     }
 
     /**
-     * Get the default Http User Agent for this client.
+     * Get the number of requests which were not served by the response cache.
      */
-    private static final String getDefaultUserAgent() {
-        return "PixmobHttpClient (" + Build.MANUFACTURER + " " + Build.MODEL + "; Android "
-                + Build.VERSION.RELEASE + "/" + Build.VERSION.SDK_INT + ")";
+    public synchronized int getResponseCacheMissCount() {
+        return responseCache == null ? 0 : responseCache.getMissCount();
+    }
+
+    /**
+     * Get the number of cached responses which were validated by the server
+     * with a conditional request.
+     */
+    public synchronized int getResponseCacheRevalidationCount() {
+        return responseCache == null ? 0 : responseCache.getRevalidationCount();
+    }
+
+    synchronized HttpResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    synchronized HttpRequestCoalescer getRequestCoalescer() {
+        return requestCoalescer;
     }
+
+    synchronized HttpRequestDispatcher getDispatcher() {
+        if (dispatcher == null) {
+            dispatcher = new HttpRequestDispatcher(this);
+        }
+        return dispatcher;
+    }
+
+    private void promoteRequests() {
+        final HttpRequestDispatcher d;
+        synchronized (this) {
+            d = dispatcher;
+        }
+        if (d != null) {
+            // Limits were updated: some queued requests may be started.
+            d.promoteRequests();
+        }
+    }
+
+    /**
+     * Set the maximum number of SSL sessions kept for resumption. The SSL
+     * session cache is shared by every {@link HttpClient} instance: a new
+     * connection to a known host resumes the previous session, skipping the
+     * full SSL handshake. A negative value keeps the platform default, and
+     * <code>0</code> means no limit.
+     */
+    public static void setSslSessionCacheSize(int size) {
+        CustomSSLSocketFactory.setSessionCacheSize(size);
+    }
+
+    /**
+     * Set the time in seconds a cached SSL session can be resumed. A negative
+     * value keeps the platform default, and <code>0</code> means no limit.
+     */
+    public static void setSslSessionTimeout(int seconds) {
+        CustomSSLSocketFactory.setSessionTimeout(seconds);
+    }
+
+    /**
+     * Get the number of SSL handshakes which resumed a cached session, for
+     * every {@link HttpClient} instance.
+     */
+    public static int getSslSessionHitCount() {
+        return CustomSSLSocketFactory.getSessionHits();
+    }
+
+    /**
+     * Get the number of SSL handshakes which negotiated a new session, for
+     * every {@link HttpClient} instance.
+     */
+    public static int getSslSessionMissCount() {
+        return CustomSSLSocketFactory.getSessionMisses();
+    }
+
+    /**
+     * Set whether cookies should be stored in the application private storage.
+     * Persistent cookies survive application restarts, including session
+     * cookies, which are kept until they are replaced or cleared. Every
+     * {@link HttpClient} instance using persistent cookies shares the same
+     * cookies. Cookie updates are written in the background, and stored
+     * cookies are loaded when they are first needed.
+     */
+    public void setPersistentCookies(boolean persistentCookies) {
+        if (persistentCookies) {
+            cookieJar = CookieJar.getPersistentInstance(new File(platform.getFilesDir(), "httpclient-cookies"),
+                    platform);
+        } else if (isPersistentCookies()) {
+            cookieJar = new CookieJar();
+        }
+    }
+
+    /**
+     * Return <code>true</code> if cookies are stored in the application
+     * private storage.
+     */
+    public boolean isPersistentCookies() {
+        return cookieJar.isPersistent();
+    }
+
+    /**
+     * Get the time in milliseconds a resolved host address is cached.
+     */
+    public synchronized long getDnsCacheTtl() {
+        return dnsCacheTtl;
+    }
+
+    /**
+     * Set the time in milliseconds a resolved host address is cached by this
+     * client. Once expired, an address is still used during the same time
+     * while the host is resolved again in the background. A lookup failure is
+     * cached for 2 seconds at most. Use <code>0</code> to disable the DNS
+     * cache.
+     * <p>
+     * The DNS cache is only used for connections opened by this library,
+     * which is the case for HTTPS connections prior to ICS. Other connections
+     * are opened by {@link java.net.HttpURLConnection}, which resolves hosts
+     * itself and never looks up the DNS cache.
+     * </p>
+     */
+    public synchronized void setDnsCacheTtl(long ttl) {
+        if (ttl < 0) {
+            throw new IllegalArgumentException("Invalid DNS cache TTL: " + ttl);
+        }
+        if (ttl != dnsCacheTtl) {
+            dnsCacheTtl = ttl;
+            dnsCache = ttl == 0 ? null : new DnsCache(ttl);
+        }
+    }
+
+    /**
+     * Resolve hosts in the background, so that the first requests to these
+     * hosts do not wait for DNS lookups. This method does nothing if the DNS
+     * cache is disabled, and only helps connections which use it.
+     * @see #setDnsCacheTtl(long)
+     */
+    public void prefetchDns(String... hosts) {
+        final DnsCache cache = dnsCache;
+        if (cache != null) {
+            for (final String host : hosts) {
+                cache.prefetch(host);
+            }
+        }
+    }
+
+    DnsCache getDnsCache() {
+        return dnsCache;
+    }
+
+    /**
+     * Get the transport opening connections for requests.
+     */
+    public HttpTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Set the transport opening connections for requests. The default
+     * transport uses the platform {@link java.net.HttpURLConnection} engine.
+     */
+    public void setTransport(HttpTransport transport) {
+        if (transport == null) {
+            throw new IllegalArgumentException("Transport cannot be null");
+        }
+        this.transport = transport;
+    }
+
+    /**
+     * Get the listener notified of request progress, or <code>null</code> if
+     * none.
+     */
+    public HttpEventListener getEventListener() {
+        return eventListener;
+    }
+
+    /**
+     * Set a listener notified of the progress of every request sent by this
+     * client. Use <code>null</code> to remove the listener.
+     */
+    public void setEventListener(HttpEventListener eventListener) {
+        this.eventListener = eventListener;
+    }
+
+    /**
+     * Return <code>true</code> if request metrics are recorded.
+     */
+    public boolean isMetricsEnabled() {
+        return metricsEnabled;
+    }
+
+    /**
+     * Set whether request metrics should be recorded. Metrics are disabled by
+     * default.
+     * @see #getMetrics()
+     */
+    public void setMetricsEnabled(boolean metricsEnabled) {
+        this.metricsEnabled = metricsEnabled;
+    }
+
+    /**
+     * Get request metrics recorded by this client. Use
+     * {@link HttpMetrics#getSnapshot()} to read them.
+     */
+    public HttpMetrics getMetrics() {
+        return metrics;
+    }
+
+    HttpMetrics getMetricsRecorder() {
+        return metricsEnabled ? metrics : null;
+    }
+
+    /**
+     * Remove every cookie received by this client.
+     */
+    public void clearCookies() {
+        cookieJar.clear();
+    }
+
+    CookieJar getCookieJar() {
+        return cookieJar;
+    }
+
 }
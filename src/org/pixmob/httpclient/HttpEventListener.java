@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.httpclient;
+
+/**
+ * This listener is notified of the progress of every request sent by a
+ * {@link HttpClient} instance. Times are given in nanoseconds, as returned by
+ * {@link System#nanoTime()}: use differences between times to measure request
+ * phases. DNS and connect events are only sent when the library opens the
+ * socket itself (HTTPS prior to ICS): a connection opened by the platform, or
+ * reused from its pool, has no such phase. Events are sent from the thread
+ * executing the request, except for
+ * {@link #onSecureConnectEnd(HttpCall, long)} which may be sent from another
+ * thread. Listener methods must be fast and thread safe.
+ * @see HttpClient#setEventListener(HttpEventListener)
+ * @author Pixmob
+ */
+public class HttpEventListener {
+    /**
+     * A request was queued for asynchronous execution.
+     * @see HttpRequestBuilder#executeAsync()
+     */
+    public void onQueued(HttpCall call, long timeNanos) {
+    }
+
+    /**
+     * A request execution started.
+     */
+    public void onStart(HttpCall call, long timeNanos) {
+    }
+
+    /**
+     * The request host is about to be resolved.
+     */
+    public void onDnsStart(HttpCall call, String host, long timeNanos) {
+    }
+
+    /**
+     * The request host was resolved.
+     */
+    public void onDnsEnd(HttpCall call, String host, long timeNanos) {
+    }
+
+    /**
+     * A new connection to the server is about to be opened.
+     */
+    public void onConnectStart(HttpCall call, long timeNanos) {
+    }
+
+    /**
+     * A new connection to the server is open. The SSL handshake is reported
+     * afterwards.
+     */
+    public void onConnectEnd(HttpCall call, long timeNanos) {
+    }
+
+    /**
+     * A SSL handshake is about to start on a new connection.
+     */
+    public void onSecureConnectStart(HttpCall call, long timeNanos) {
+    }
+
+    /**
+     * A SSL handshake completed.
+     */
+    public void onSecureConnectEnd(HttpCall call, long timeNanos) {
+    }
+
+    /**
+     * The request headers and content were written. This event is only sent
+     * for requests with content.
+     */
+    public void onRequestBodyEnd(HttpCall call, long byteCount, long timeNanos) {
+    }
+
+    /**
+     * The response status line and headers were received.
+     */
+    public void onResponseStart(HttpCall call, int statusCode, long timeNanos) {
+    }
+
+    /**
+     * The response content was read, or the response was closed.
+     * @param byteCount
+     *            number of bytes read from the response content, after
+     *            decompression
+     */
+    public void onResponseBodyEnd(HttpCall call, long byteCount, long timeNanos) {
+    }
+
+    /**
+     * A request failed.
+     */
+    public void onFailed(HttpCall call, HttpClientException error, long timeNanos) {
+    }
+}
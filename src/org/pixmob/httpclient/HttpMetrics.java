@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.httpclient;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Request metrics collected by a {@link HttpClient} instance: request latency
+ * by host, method and status class, transferred bytes and errors. A failed
+ * request is recorded once, with its latency until the failure and the
+ * {@link #NO_RESPONSE} status class if no response was received. Metrics are
+ * recorded without locking, and a {@link Snapshot} can be taken at any time
+ * without blocking requests.
+ * @see HttpClient#setMetricsEnabled(boolean)
+ * @author Pixmob
+ */
+public final class HttpMetrics {
+    /**
+     * Status class used for requests which failed before getting a response.
+     */
+    public static final String NO_RESPONSE = "none";
+    private static final double[] DUMPED_PERCENTILES = { 50, 90, 99, 99.9 };
+    private final ConcurrentMap<String, RequestMetrics> requestMetrics = new ConcurrentHashMap<String, RequestMetrics>(
+            8);
+    private final ConcurrentMap<String, AtomicLong> errorCounts = new ConcurrentHashMap<String, AtomicLong>(4);
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+
+    HttpMetrics() {
+    }
+
+    /**
+     * Record a completed request.
+     * @param statusCode
+     *            response status code, or <code>-1</code> if no response was
+     *            received
+     */
+    void recordRequest(String uri, String method, int statusCode, long durationNanos) {
+        String host;
+        try {
+            host = new URL(uri).getHost();
+        } catch (MalformedURLException e) {
+            host = uri;
+        }
+        final String statusClass = statusCode == -1 ? NO_RESPONSE : statusCode / 100 + "xx";
+        final String key = host + " " + method + " " + statusClass;
+        RequestMetrics m = requestMetrics.get(key);
+        if (m == null) {
+            final RequestMetrics newMetrics = new RequestMetrics(host, method, statusClass);
+            m = requestMetrics.putIfAbsent(key, newMetrics);
+            if (m == null) {
+                m = newMetrics;
+            }
+        }
+        m.latency.record(durationNanos / 1000);
+    }
+
+    void recordError(HttpClientException error) {
+        // Report the underlying error type, such as a timeout.
+        final Throwable cause = error.getCause() != null ? error.getCause() : error;
+        final String type = cause.getClass().getName();
+        AtomicLong count = errorCounts.get(type);
+        if (count == null) {
+            final AtomicLong newCount = new AtomicLong();
+            count = errorCounts.putIfAbsent(type, newCount);
+            if (count == null) {
+                count = newCount;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    void recordBytesSent(long byteCount) {
+        bytesSent.addAndGet(byteCount);
+    }
+
+    void recordBytesReceived(long byteCount) {
+        bytesReceived.addAndGet(byteCount);
+    }
+
+    /**
+     * Get a copy of current metrics.
+     */
+    public Snapshot getSnapshot() {
+        final List<RequestStats> requestStats = new ArrayList<RequestStats>(requestMetrics.size());
+        for (final RequestMetrics m : requestMetrics.values()) {
+            requestStats.add(new RequestStats(m.host, m.method, m.statusClass, m.latency.getCount(), m.latency
+                    .getSum(), m.latency.copyCounts()));
+        }
+        final Map<String, Long> errors = new HashMap<String, Long>(errorCounts.size());
+        for (final Map.Entry<String, AtomicLong> e : errorCounts.entrySet()) {
+            errors.put(e.getKey(), e.getValue().get());
+        }
+        return new Snapshot(System.currentTimeMillis(), Collections.unmodifiableList(requestStats),
+                Collections.unmodifiableMap(errors), bytesSent.get(), bytesReceived.get());
+    }
+
+    /**
+     * Metrics recorded for requests sharing a host, a method and a status
+     * class.
+     * @author Pixmob
+     */
+    private static class RequestMetrics {
+        final String host;
+        final String method;
+        final String statusClass;
+        final LatencyHistogram latency = new LatencyHistogram();
+
+        public RequestMetrics(final String host, final String method, final String statusClass) {
+            this.host = host;
+            this.method = method;
+            this.statusClass = statusClass;
+        }
+    }
+
+    /**
+     * Metrics at a given time.
+     * @author Pixmob
+     */
+    public static final class Snapshot {
+        private final long time;
+        private final List<RequestStats> requestStats;
+        private final Map<String, Long> errorCounts;
+        private final long bytesSent;
+        private final long bytesReceived;
+
+        Snapshot(final long time, final List<RequestStats> requestStats, final Map<String, Long> errorCounts,
+                final long bytesSent, final long bytesReceived) {
+            this.time = time;
+            this.requestStats = requestStats;
+            this.errorCounts = errorCounts;
+            this.bytesSent = bytesSent;
+            this.bytesReceived = bytesReceived;
+        }
+
+        /**
+         * Get the time this snapshot was taken, in milliseconds since the
+         * epoch.
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * Get request statistics, by host, method and status class.
+         */
+        public List<RequestStats> getRequestStats() {
+            return requestStats;
+        }
+
+        /**
+         * Get error counts by error type, such as
+         * <code>java.net.SocketTimeoutException</code>. A timeout is counted
+         * even if it was handled by
+         * {@link HttpResponseHandler#onTimeout()}.
+         */
+        public Map<String, Long> getErrorCounts() {
+            return errorCounts;
+        }
+
+        /**
+         * Get the number of bytes sent as request content.
+         */
+        public long getBytesSent() {
+            return bytesSent;
+        }
+
+        /**
+         * Get the number of bytes received as response content.
+         */
+        public long getBytesReceived() {
+            return bytesReceived;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder buf = new StringBuilder(256);
+            buf.append("sent=").append(bytesSent).append(" received=").append(bytesReceived);
+            for (final RequestStats stats : requestStats) {
+                buf.append('\n').append(stats);
+            }
+            for (final Map.Entry<String, Long> e : errorCounts.entrySet()) {
+                buf.append("\nerror ").append(e.getKey()).append(": ").append(e.getValue());
+            }
+            return buf.toString();
+        }
+    }
+
+    /**
+     * Statistics for requests sharing a host, a method and a status class.
+     * @author Pixmob
+     */
+    public static final class RequestStats {
+        private final String host;
+        private final String method;
+        private final String statusClass;
+        private final long count;
+        private final long latencySum;
+        private final long[] latencyCounts;
+
+        RequestStats(final String host, final String method, final String statusClass, final long count,
+                final long latencySum, final long[] latencyCounts) {
+            this.host = host;
+            this.method = method;
+            this.statusClass = statusClass;
+            this.count = count;
+            this.latencySum = latencySum;
+            this.latencyCounts = latencyCounts;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public String getMethod() {
+            return method;
+        }
+
+        /**
+         * Get the status class, such as <code>2xx</code>, or
+         * {@link HttpMetrics#NO_RESPONSE}.
+         */
+        public String getStatusClass() {
+            return statusClass;
+        }
+
+        /**
+         * Get the number of completed requests.
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * Get the mean request latency in nanoseconds.
+         */
+        public long getMeanLatency() {
+            return count == 0 ? 0 : latencySum / count * 1000;
+        }
+
+        /**
+         * Get a request latency percentile in nanoseconds, from the request
+         * start to the end of the response content.
+         * @param percentile
+         *            between <code>0</code> and <code>100</code>, such as
+         *            <code>99.9</code>
+         */
+        public long getLatencyPercentile(double percentile) {
+            return LatencyHistogram.getValueAtPercentile(latencyCounts, percentile) * 1000;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder buf = new StringBuilder(128);
+            buf.append(method).append(' ').append(host).append(' ').append(statusClass).append(": count=")
+                    .append(count);
+            for (final double p : DUMPED_PERCENTILES) {
+                buf.append(" p").append(p == (long) p ? String.valueOf((long) p) : String.valueOf(p)).append('=')
+                        .append(getLatencyPercentile(p) / 1000).append("us");
+            }
+            return buf.toString();
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.httpclient;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Content sent with an Http request. Subclass this class to write the content
+ * when the request is sent, without holding it in memory.
+ * @author Pixmob
+ */
+public abstract class HttpRequestBody {
+    /**
+     * Buffer size used for copying content: large files are sent in a few
+     * system calls.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private final String contentType;
+
+    public HttpRequestBody(final String contentType) {
+        this.contentType = contentType;
+    }
+
+    /**
+     * Get the content type, or <code>null</code> if unknown.
+     */
+    public final String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * Get the content length in bytes, or <code>-1</code> if unknown. The
+     * content is sent with chunked encoding if its length is unknown.
+     */
+    public long getContentLength() {
+        return -1;
+    }
+
+    /**
+     * Return <code>true</code> if the content can be written more than once.
+     * A request is only sent again with new credentials if its content is
+     * replayable.
+     */
+    public boolean isReplayable() {
+        return false;
+    }
+
+    /**
+     * Write the content to the request.
+     */
+    public abstract void writeTo(OutputStream out) throws IOException;
+
+    /**
+     * Create content from a byte array.
+     */
+    public static HttpRequestBody create(final byte[] content, String contentType) {
+        if (content == null) {
+            throw new IllegalArgumentException("Content cannot be null");
+        }
+        return new HttpRequestBody(contentType) {
+            @Override
+            public long getContentLength() {
+                return content.length;
+            }
+
+            @Override
+            public boolean isReplayable() {
+                return true;
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                out.write(content);
+            }
+        };
+    }
+
+    /**
+     * Create content from a file. The file is read when the request is sent.
+     * The content length is computed when this method is called: exactly this
+     * number of bytes is sent, even if the file grows in the meantime.
+     */
+    public static HttpRequestBody create(final File file, String contentType) {
+        if (file == null) {
+            throw new IllegalArgumentException("File cannot be null");
+        }
+        final long contentLength = file.length();
+        return new HttpRequestBody(contentType) {
+            @Override
+            public long getContentLength() {
+                return contentLength;
+            }
+
+            @Override
+            public boolean isReplayable() {
+                return true;
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                final InputStream input = new FileInputStream(file);
+                try {
+                    copy(input, out, contentLength);
+                } finally {
+                    IOUtils.close(input);
+                }
+            }
+        };
+    }
+
+    /**
+     * Create content from a stream. The stream is read and closed when the
+     * request is sent.
+     * @param contentLength
+     *            number of bytes to read from the stream, or <code>-1</code>
+     *            if the stream should be read until its end
+     */
+    public static HttpRequestBody create(final InputStream input, final long contentLength, String contentType) {
+        if (input == null) {
+            throw new IllegalArgumentException("Input stream cannot be null");
+        }
+        return new HttpRequestBody(contentType) {
+            @Override
+            public long getContentLength() {
+                return contentLength;
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                try {
+                    copy(input, out, contentLength);
+                } finally {
+                    IOUtils.close(input);
+                }
+            }
+        };
+    }
+
+    /**
+     * Copy a stream.
+     * @param length
+     *            number of bytes to copy, or <code>-1</code> to copy the whole
+     *            stream
+     * @throws IOException
+     *             if the stream ends before <code>length</code> bytes are
+     *             read
+     */
+    private static void copy(InputStream in, OutputStream out, long length) throws IOException {
+        final byte[] buf = new byte[(int) (length < 0 ? BUFFER_SIZE : Math.max(1, Math.min(BUFFER_SIZE, length)))];
+        long remaining = length;
+        while (length < 0 || remaining > 0) {
+            final int bytesRead = in.read(buf, 0, length < 0 ? buf.length : (int) Math.min(buf.length, remaining));
+            if (bytesRead == -1) {
+                if (length < 0) {
+                    return;
+                }
+                throw new IOException("Unexpected end of stream: " + (length - remaining) + " bytes read, "
+                        + length + " bytes expected");
+            }
+            out.write(buf, 0, bytesRead);
+            remaining -= bytesRead;
+        }
+    }
+}
@@ -21,52 +21,45 @@ import static org.pixmob.httpclient.Constants.HTTP_HEAD;
 import static org.pixmob.httpclient.Constants.HTTP_POST;
 import static org.pixmob.httpclient.Constants.HTTP_PUT;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
-import java.lang.reflect.Field;
 import java.net.HttpURLConnection;
-import java.net.InetAddress;
-import java.net.Socket;
+import java.net.MalformedURLException;
 import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.net.URLEncoder;
-import java.net.UnknownHostException;
-import java.security.GeneralSecurityException;
-import java.security.KeyStore;
-import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Future;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.Inflater;
 import java.util.zip.InflaterInputStream;
 
 import javax.net.ssl.HttpsURLConnection;
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLSocketFactory;
-import javax.net.ssl.TrustManager;
 
-import org.apache.http.conn.ssl.BrowserCompatHostnameVerifier;
-
-import android.content.Context;
 import android.os.Build;
 
+
 /**
  * This class is used to prepare and execute an Http request.
  * @author Pixmob
  */
 public final class HttpRequestBuilder {
-    private static final SecureRandom SECURE_RANDOM = new SecureRandom();
     private static final String CONTENT_CHARSET = "UTF-8";
+    private static final String ACCEPT_ENCODING = "gzip,deflate";
     private static final Map<String, List<String>> NO_HEADERS = new HashMap<String, List<String>>(0);
-    private static TrustManager[] trustManagers;
     private final byte[] buffer = new byte[1024];
     private final HttpClient hc;
     private final List<HttpRequestHandler> reqHandlers = new ArrayList<HttpRequestHandler>(2);
@@ -76,10 +69,13 @@ public final class HttpRequestBuilder {
     private Map<String, String> cookies;
     private Map<String, List<String>> headers;
     private Map<String, String> parameters;
-    private byte[] content;
-    private boolean contentSet;
-    private String contentType;
+    private HttpRequestBody content;
     private HttpResponseHandler handler;
+    private HttpCall call;
+    private HttpResponseCache cache;
+    private Map<String, String> cacheRequestHeaders;
+    private HttpResponseCache.Entry cacheEntry;
+    private InputStream cachedPayload;
 
     HttpRequestBuilder(final HttpClient hc, final String uri, final String method) {
         this.hc = hc;
@@ -107,11 +103,18 @@ public final class HttpRequestBuilder {
     }
 
     public HttpRequestBuilder content(byte[] content, String contentType) {
+        this.content = content == null ? null : HttpRequestBody.create(content, contentType);
+        return this;
+    }
+
+    /**
+     * Set the request content. The content is streamed to the server: use
+     * {@link HttpRequestBody#create(File, String)} or
+     * {@link HttpRequestBody#create(InputStream, long, String)} to upload
+     * large content without reading it in memory.
+     */
+    public HttpRequestBuilder content(HttpRequestBody content) {
         this.content = content;
-        this.contentType = contentType;
-        if (content != null) {
-            contentSet = true;
-        }
         return this;
     }
 
@@ -187,47 +190,383 @@ public final class HttpRequestBuilder {
         return this;
     }
 
+    /**
+     * Write the response to a file. If <code>resume</code> is
+     * <code>true</code>, a download which was previously interrupted is
+     * resumed: only the missing bytes are downloaded, as long as the remote
+     * file is unchanged.
+     */
+    public HttpRequestBuilder to(File file, boolean resume) throws IOException {
+        if (!resume) {
+            return to(file);
+        }
+        final ResumableDownloadHandler downloadHandler = new ResumableDownloadHandler(file);
+        downloadHandler.prepare(this);
+        to(downloadHandler);
+        return this;
+    }
+
     public HttpRequestBuilder to(OutputStream output) {
         to(new WriteToOutputStreamHandler(output));
         return this;
     }
 
+    /**
+     * Execute this request in the background. The request is queued by the
+     * {@link HttpClient} instance, which limits the number of concurrent
+     * requests. The response handler set with {@link #to(HttpResponseHandler)}
+     * is called from a background thread. Use the returned {@link Future} to
+     * wait for the response, or to cancel the request.
+     * @see HttpClient#setMaxConcurrentRequests(int)
+     * @see HttpClient#setMaxConcurrentRequestsPerHost(int)
+     */
+    public Future<HttpResponse> executeAsync() {
+        return executeAsync(null);
+    }
+
+    /**
+     * Execute this request in the background, and run a callback once the
+     * request is completed or canceled.
+     */
+    Future<HttpResponse> executeAsync(Runnable onDone) {
+        String host;
+        try {
+            host = new URL(uri).getHost();
+        } catch (MalformedURLException e) {
+            // The error is reported when the request is executed.
+            host = uri;
+        }
+        final HttpCall call = new HttpCall(hc, method, uri);
+        call.queued();
+        return hc.getDispatcher().enqueue(this, host, call, onDone);
+    }
+
     public HttpResponse execute() throws HttpClientException {
+        return execute(new HttpCall(hc, method, uri));
+    }
+
+    HttpResponse execute(HttpCall call) throws HttpClientException {
+        this.call = call;
+        call.start();
+        try {
+            return executeCall();
+        } catch (HttpClientException e) {
+            call.failed(e);
+            throw e;
+        } finally {
+            IOUtils.close(cachedPayload);
+        }
+    }
+
+    private HttpResponse executeCall() throws HttpClientException {
+        prepareParameters();
+        call.setUri(uri);
+
+        cache = isCacheable() ? hc.getResponseCache() : null;
+        if (cache != null) {
+            cacheRequestHeaders = getCacheRequestHeaders();
+            cacheEntry = cache.get(uri, cacheRequestHeaders);
+            if (cacheEntry != null) {
+                // The payload is opened right away: the entry may be evicted
+                // or replaced while the request is executed, but an open file
+                // is still readable.
+                try {
+                    cachedPayload = cacheEntry.openPayload();
+                } catch (IOException e) {
+                    cacheEntry = null;
+                }
+            }
+            if (cacheEntry != null && cacheEntry.isFresh(cacheRequestHeaders)) {
+                cache.recordHit();
+                return executeCached(cacheEntry);
+            }
+        }
+
+        // Identical requests share the network exchange, which goes through
+        // the cache like any other request.
+        final HttpRequestCoalescer coalescer = hc.getRequestCoalescer();
+        if (coalescer != null && (HTTP_GET.equals(method) || HTTP_HEAD.equals(method))) {
+            return executeCoalesced(coalescer);
+        }
+
         HttpURLConnection conn = null;
         UncloseableInputStream payloadStream = null;
+        final boolean keepAlive = hc.isKeepAlive();
         try {
-            if (parameters != null && !parameters.isEmpty()) {
-                final StringBuilder buf = new StringBuilder(256);
-                if (HTTP_GET.equals(method) || HTTP_HEAD.equals(method)) {
-                    buf.append('?');
-                }
+            final long requestTime = System.currentTimeMillis();
+            conn = openAuthenticatedConnection(keepAlive, cacheEntry);
+
+            final int statusCode = getStatusCode(conn);
+            final Map<String, List<String>> headerFields = getHeaderFields(conn);
+            if (cacheEntry == null || statusCode != HttpURLConnection.HTTP_NOT_MODIFIED) {
+                call.responseStart(statusCode);
+            }
+            if (cacheEntry != null && statusCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                // The cached response is still valid.
+                storeCookies(conn.getURL(), headerFields);
+                payloadStream = new UncloseableInputStream(getInputStream(conn));
+                return executeCached(cache.update(cacheEntry, requestTime, headerFields));
+            }
+            checkStatusCode(statusCode);
+            storeCookies(conn.getURL(), headerFields);
 
-                int paramIdx = 0;
-                for (final Map.Entry<String, String> e : parameters.entrySet()) {
-                    if (paramIdx != 0) {
-                        buf.append("&");
+            if (isStatusCodeError(statusCode)) {
+                // Got an error: cannot read input.
+                payloadStream = new UncloseableInputStream(call.responseBody(getErrorStream(conn)));
+            } else if (cache != null) {
+                cache.recordMiss();
+                payloadStream = new UncloseableInputStream(call.responseBody(cache.put(uri, cacheRequestHeaders,
+                        requestTime, statusCode, headerFields, getInputStream(conn))));
+            } else {
+                payloadStream = new UncloseableInputStream(call.responseBody(getInputStream(conn)));
+            }
+            final HttpResponse resp = new HttpResponse(statusCode, payloadStream, headerFields,
+                    hc.getCookieJar().getCookies(conn.getURL()));
+            if (handler != null) {
+                handleResponse(resp);
+            } else {
+                resp.preload(hc.getPlatform().getCacheDir(), hc.getMaxInMemoryResponseSize());
+            }
+            return resp;
+        } catch (SocketTimeoutException e) {
+            return handleTimeout(e);
+        } catch (IOException e) {
+            throw new HttpClientException("Connection failed to " + uri, e);
+        } finally {
+            if (conn != null) {
+                boolean reusable = false;
+                if (payloadStream != null) {
+                    // Fully read Http response:
+                    // http://docs.oracle.com/javase/6/docs/technotes/guides/net/http-keepalive.html
+                    try {
+                        while (payloadStream.read(buffer) != -1) {
+                            ;
+                        }
+                        reusable = true;
+                    } catch (IOException ignore) {
                     }
-                    final String name = e.getKey();
-                    final String value = e.getValue();
-                    buf.append(URLEncoder.encode(name, CONTENT_CHARSET)).append("=")
-                            .append(URLEncoder.encode(value, CONTENT_CHARSET));
-                    ++paramIdx;
+                    payloadStream.forceClose();
                 }
+                release(conn, keepAlive && reusable);
+            }
+        }
+    }
 
-                if (!contentSet
-                        && (HTTP_POST.equals(method) || HTTP_DELETE.equals(method) || HTTP_PUT.equals(method))) {
-                    try {
-                        content = buf.toString().getBytes(CONTENT_CHARSET);
-                    } catch (UnsupportedEncodingException e) {
-                        // Unlikely to happen.
-                        throw new HttpClientException("Encoding error", e);
+    /**
+     * Use a cached response for this request.
+     */
+    private HttpResponse executeCached(HttpResponseCache.Entry cacheEntry) throws HttpClientException {
+        call.responseStart(cacheEntry.getStatusCode());
+        checkStatusCode(cacheEntry.getStatusCode());
+
+        final UncloseableInputStream payloadStream = new UncloseableInputStream(call.responseBody(cachedPayload));
+        final HttpResponse resp = new HttpResponse(cacheEntry.getStatusCode(), payloadStream,
+                cacheEntry.getHeaders(), getCookies());
+        try {
+            if (handler != null) {
+                handleResponse(resp);
+            } else {
+                // The cached file is closed once the payload is read.
+                resp.preload(hc.getPlatform().getCacheDir(), hc.getMaxInMemoryResponseSize());
+            }
+        } catch (IOException e) {
+            throw new HttpClientException("Failed to read cached response for " + uri, e);
+        } finally {
+            payloadStream.forceClose();
+        }
+        return resp;
+    }
+
+    /**
+     * Get request headers used for selecting a cached response.
+     */
+    private Map<String, String> getCacheRequestHeaders() {
+        final Map<String, String> cacheRequestHeaders = new HashMap<String, String>(8);
+        cacheRequestHeaders.put("User-Agent", hc.getUserAgent());
+        cacheRequestHeaders.put("Accept-Encoding", ACCEPT_ENCODING);
+        cacheRequestHeaders.put("Accept-Charset", CONTENT_CHARSET);
+        if (headers != null) {
+            for (final Map.Entry<String, List<String>> e : headers.entrySet()) {
+                final List<String> values = e.getValue();
+                if (values != null && !values.isEmpty()) {
+                    final StringBuilder buf = new StringBuilder(32);
+                    for (final String value : values) {
+                        if (buf.length() != 0) {
+                            buf.append(", ");
+                        }
+                        buf.append(value);
                     }
+                    cacheRequestHeaders.put(e.getKey(), buf.toString());
+                }
+            }
+        }
+        return cacheRequestHeaders;
+    }
+
+    /**
+     * Execute this request, sharing the network exchange with identical
+     * requests in flight. Every caller gets its own copy of the response.
+     */
+    private HttpResponse executeCoalesced(HttpRequestCoalescer coalescer) throws HttpClientException {
+        final BufferedResponse sharedResp;
+        try {
+            sharedResp = coalescer.execute(getCoalescingKey(), this);
+        } catch (SocketTimeoutException e) {
+            return handleTimeout(e);
+        } catch (IOException e) {
+            throw new HttpClientException("Connection failed to " + uri, e);
+        }
+
+        call.responseStart(sharedResp.getStatusCode());
+        checkStatusCode(sharedResp.getStatusCode());
+        final HttpResponse resp = new HttpResponse(sharedResp.getStatusCode(),
+                call.responseBody(sharedResp.openPayload()), sharedResp.getHeaders(), getCookies());
+        if (handler != null) {
+            handleResponse(resp);
+        }
+        return resp;
+    }
+
+    /**
+     * Send this request, and read the whole response in memory. The status
+     * code is not checked, since this response may be shared. A cached
+     * response is revalidated, and a new response is stored in the cache.
+     */
+    BufferedResponse executeBuffered() throws IOException, HttpClientException {
+        HttpURLConnection conn = null;
+        InputStream payloadStream = null;
+        boolean reusable = false;
+        final boolean keepAlive = hc.isKeepAlive();
+        try {
+            final long requestTime = System.currentTimeMillis();
+            conn = openAuthenticatedConnection(keepAlive, cacheEntry);
+
+            final int statusCode = getStatusCode(conn);
+            final Map<String, List<String>> headerFields = getHeaderFields(conn);
+            storeCookies(conn.getURL(), headerFields);
+
+            final BufferedResponse resp;
+            if (cacheEntry != null && statusCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                // The cached response is still valid.
+                payloadStream = getInputStream(conn);
+                readFully(payloadStream);
+                final HttpResponseCache.Entry newEntry = cache.update(cacheEntry, requestTime, headerFields);
+                resp = new BufferedResponse(newEntry.getStatusCode(), newEntry.getHeaders(), readFully(cachedPayload));
+            } else {
+                if (isStatusCodeError(statusCode)) {
+                    payloadStream = getErrorStream(conn);
+                } else if (cache != null) {
+                    cache.recordMiss();
+                    payloadStream = cache.put(uri, cacheRequestHeaders, requestTime, statusCode, headerFields,
+                        getInputStream(conn));
                 } else {
-                    uri += buf;
+                    payloadStream = getInputStream(conn);
                 }
+                resp = new BufferedResponse(statusCode, headerFields, readFully(payloadStream));
             }
+            reusable = true;
+            return resp;
+        } finally {
+            IOUtils.close(payloadStream);
+            if (conn != null) {
+                release(conn, keepAlive && reusable);
+            }
+        }
+    }
 
-            conn = (HttpURLConnection) new URL(uri).openConnection();
+    /**
+     * Get a key identifying this request: requests with the same key get the
+     * same response.
+     */
+    private Object getCoalescingKey() {
+        final Map<String, List<String>> sortedHeaders = new TreeMap<String, List<String>>();
+        if (headers != null) {
+            sortedHeaders.putAll(headers);
+        }
+        final Map<String, String> sortedCookies = new TreeMap<String, String>();
+        if (cookies != null) {
+            sortedCookies.putAll(cookies);
+        }
+        // Request handlers may update the request: identical requests must
+        // use the same handler instances.
+        return Arrays.asList(method, uri, sortedHeaders, sortedCookies,
+                new ArrayList<HttpRequestHandler>(reqHandlers));
+    }
+
+    /**
+     * Return <code>true</code> if the response to this request may be stored
+     * in the cache. Partial responses are not cached, neither are responses
+     * to requests with credentials (an <code>Authorization</code> header, set
+     * directly or by an authenticator, or cookies set on this request): the
+     * cache is keyed by URI, and would serve these responses to other users.
+     * Cookies from the cookie jar do not prevent caching: responses depending
+     * on them should be marked <code>private</code> by the server.
+     */
+    private boolean isCacheable() {
+        return HTTP_GET.equals(method) && !hasHeader("Range") && !hasHeader("Authorization")
+                && !hasHeader("Cookie") && (cookies == null || cookies.isEmpty()) && reqHandlers.isEmpty();
+    }
+
+    private boolean hasHeader(String name) {
+        if (headers != null) {
+            for (final String headerName : headers.keySet()) {
+                if (name.equalsIgnoreCase(headerName)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Encode request parameters, either in the request URI or in the request
+     * content.
+     */
+    private void prepareParameters() throws HttpClientException {
+        if (parameters == null || parameters.isEmpty()) {
+            return;
+        }
+
+        final StringBuilder buf = new StringBuilder(256);
+        if (HTTP_GET.equals(method) || HTTP_HEAD.equals(method)) {
+            buf.append('?');
+        }
+
+        try {
+            int paramIdx = 0;
+            for (final Map.Entry<String, String> e : parameters.entrySet()) {
+                if (paramIdx != 0) {
+                    buf.append("&");
+                }
+                final String name = e.getKey();
+                final String value = e.getValue();
+                buf.append(URLEncoder.encode(name, CONTENT_CHARSET)).append("=")
+                        .append(URLEncoder.encode(value, CONTENT_CHARSET));
+                ++paramIdx;
+            }
+
+            if (content == null && (HTTP_POST.equals(method) || HTTP_DELETE.equals(method) || HTTP_PUT.equals(method))) {
+                content = HttpRequestBody.create(buf.toString().getBytes(CONTENT_CHARSET),
+                        "application/x-www-form-urlencoded; charset=" + CONTENT_CHARSET);
+            } else {
+                uri += buf;
+            }
+        } catch (UnsupportedEncodingException e) {
+            // Unlikely to happen.
+            throw new HttpClientException("Encoding error", e);
+        }
+    }
+
+    /**
+     * Open a connection, and send this request.
+     * @param cacheEntry
+     *            cached response to revalidate, or <code>null</code>
+     */
+    private HttpURLConnection openConnection(boolean keepAlive, HttpResponseCache.Entry cacheEntry)
+            throws IOException, HttpClientException {
+        final URL url = new URL(uri);
+        final HttpURLConnection conn = hc.getTransport().openConnection(url);
+        try {
             conn.setConnectTimeout(hc.getConnectTimeout());
             conn.setReadTimeout(hc.getReadTimeout());
             conn.setAllowUserInteraction(false);
@@ -248,12 +587,16 @@ public final class HttpRequestBuilder {
                 }
             }
 
-            if (cookies != null && !cookies.isEmpty() || hc.getInMemoryCookies() != null
-                    && !hc.getInMemoryCookies().isEmpty()) {
+            final String storedCookies = hc.getCookieJar().getCookieHeader(conn.getURL());
+            if (cookies != null && !cookies.isEmpty()) {
                 final StringBuilder cookieHeaderValue = new StringBuilder(256);
                 prepareCookieHeader(cookies, cookieHeaderValue);
-                prepareCookieHeader(hc.getInMemoryCookies(), cookieHeaderValue);
+                if (storedCookies != null) {
+                    cookieHeaderValue.append("; ").append(storedCookies);
+                }
                 conn.setRequestProperty("Cookie", cookieHeaderValue.toString());
+            } else if (storedCookies != null) {
+                conn.setRequestProperty("Cookie", storedCookies);
             }
 
             final String userAgent = hc.getUserAgent();
@@ -261,35 +604,34 @@ public final class HttpRequestBuilder {
                 conn.setRequestProperty("User-Agent", userAgent);
             }
 
-            conn.setRequestProperty("Connection", "close");
+            if (!keepAlive) {
+                conn.setRequestProperty("Connection", "close");
+            }
             conn.setRequestProperty("Location", uri);
             conn.setRequestProperty("Referrer", uri);
-            conn.setRequestProperty("Accept-Encoding", "gzip,deflate");
+            if (!hasHeader("Accept-Encoding")) {
+                conn.setRequestProperty("Accept-Encoding", ACCEPT_ENCODING);
+            }
             conn.setRequestProperty("Accept-Charset", CONTENT_CHARSET);
 
-            if (conn instanceof HttpsURLConnection) {
-                setupSecureConnection(hc.getContext(), (HttpsURLConnection) conn);
+            if (cacheEntry != null) {
+                // Only download the response if the cached one is outdated.
+                final String etag = cacheEntry.getETag();
+                if (etag != null && conn.getRequestProperty("If-None-Match") == null) {
+                    conn.setRequestProperty("If-None-Match", etag);
+                }
+                final String lastModified = cacheEntry.getLastModified();
+                if (lastModified != null && conn.getRequestProperty("If-Modified-Since") == null) {
+                    conn.setRequestProperty("If-Modified-Since", lastModified);
+                }
             }
 
-            if (HTTP_POST.equals(method) || HTTP_DELETE.equals(method) || HTTP_PUT.equals(method)) {
-                if (content != null) {
-                    conn.setDoOutput(true);
-                    if (!contentSet) {
-                        conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded; charset="
-                                + CONTENT_CHARSET);
-                    } else if (contentType != null) {
-                        conn.setRequestProperty("Content-Type", contentType);
-                    }
-                    conn.setFixedLengthStreamingMode(content.length);
-
-                    final OutputStream out = conn.getOutputStream();
-                    out.write(content);
-                    out.flush();
-                } else {
-                    conn.setFixedLengthStreamingMode(0);
-                }
+            if (conn instanceof HttpsURLConnection) {
+                setupSecureConnection(hc.getPlatform(), (HttpsURLConnection) conn);
             }
 
+            // Request handlers must be invoked before the content is sent:
+            // request headers cannot be updated afterwards.
             for (final HttpRequestHandler connHandler : reqHandlers) {
                 try {
                     connHandler.onRequest(conn);
@@ -300,87 +642,216 @@ public final class HttpRequestBuilder {
                 }
             }
 
-            conn.connect();
-
-            final int statusCode = conn.getResponseCode();
-            if (statusCode == -1) {
-                throw new HttpClientException("Invalid response from " + uri);
-            }
-            if (!expectedStatusCodes.isEmpty() && !expectedStatusCodes.contains(statusCode)) {
-                throw new HttpClientException("Expected status code " + expectedStatusCodes + ", got "
-                        + statusCode);
-            } else if (expectedStatusCodes.isEmpty() && statusCode / 100 != 2) {
-                throw new HttpClientException("Expected status code 2xx, got " + statusCode);
-            }
-
-            final Map<String, List<String>> headerFields = conn.getHeaderFields();
-            final Map<String, String> inMemoryCookies = hc.getInMemoryCookies();
-            if (headerFields != null) {
-                final List<String> newCookies = headerFields.get("Set-Cookie");
-                if (newCookies != null) {
-                    for (final String newCookie : newCookies) {
-                        final String rawCookie = newCookie.split(";", 2)[0];
-                        final int i = rawCookie.indexOf('=');
-                        final String name = rawCookie.substring(0, i);
-                        final String value = rawCookie.substring(i + 1);
-                        inMemoryCookies.put(name, value);
+            final boolean sendContent = content != null
+                    && (HTTP_POST.equals(method) || HTTP_DELETE.equals(method) || HTTP_PUT.equals(method));
+            if (HTTP_POST.equals(method) || HTTP_DELETE.equals(method) || HTTP_PUT.equals(method)) {
+                if (sendContent) {
+                    conn.setDoOutput(true);
+                    if (content.getContentType() != null) {
+                        conn.setRequestProperty("Content-Type", content.getContentType());
                     }
+                    final long contentLength = content.getContentLength();
+                    if (contentLength >= 0 && contentLength <= Integer.MAX_VALUE) {
+                        conn.setFixedLengthStreamingMode((int) contentLength);
+                    } else {
+                        // Use the default chunk length.
+                        conn.setChunkedStreamingMode(0);
+                    }
+                } else {
+                    conn.setFixedLengthStreamingMode(0);
                 }
             }
 
-            if (isStatusCodeError(statusCode)) {
-                // Got an error: cannot read input.
-                payloadStream = new UncloseableInputStream(getErrorStream(conn));
-            } else {
-                payloadStream = new UncloseableInputStream(getInputStream(conn));
+            // Sockets opened by the library report their phases to the call.
+            HttpCall.setCurrent(call);
+            try {
+                conn.connect();
+            } finally {
+                HttpCall.setCurrent(null);
             }
-            final HttpResponse resp = new HttpResponse(statusCode, payloadStream,
-                    headerFields == null ? NO_HEADERS : headerFields, inMemoryCookies);
-            if (handler != null) {
-                try {
-                    handler.onResponse(resp);
-                } catch (HttpClientException e) {
-                    throw e;
-                } catch (Exception e) {
-                    throw new HttpClientException("Error in response handler", e);
-                }
-            } else {
-                final File temp = File.createTempFile("httpclient-req-", ".cache", hc.getContext().getCacheDir());
-                resp.preload(temp);
-                temp.delete();
+
+            if (sendContent) {
+                final OutputStream out = call.requestBody(conn.getOutputStream());
+                content.writeTo(out);
+                out.close();
             }
-            return resp;
-        } catch (SocketTimeoutException e) {
-            if (handler != null) {
-                try {
-                    handler.onTimeout();
-                    return null;
-                } catch (HttpClientException e2) {
-                    throw e2;
-                } catch (Exception e2) {
-                    throw new HttpClientException("Error in response handler", e2);
+        } catch (IOException e) {
+            conn.disconnect();
+            throw e;
+        } catch (HttpClientException e) {
+            conn.disconnect();
+            throw e;
+        }
+        return conn;
+    }
+
+    /**
+     * Open a connection, and send the request again once if the server
+     * rejected its credentials and a request handler refreshed them.
+     */
+    private HttpURLConnection openAuthenticatedConnection(boolean keepAlive, HttpResponseCache.Entry cacheEntry)
+            throws IOException, HttpClientException {
+        final HttpURLConnection conn = openConnection(keepAlive, cacheEntry);
+        final boolean replay;
+        try {
+            replay = getStatusCode(conn) == HttpURLConnection.HTTP_UNAUTHORIZED
+                    && !expectedStatusCodes.contains(HttpURLConnection.HTTP_UNAUTHORIZED) && refreshCredentials(conn);
+        } catch (IOException e) {
+            conn.disconnect();
+            throw e;
+        } catch (HttpClientException e) {
+            conn.disconnect();
+            throw e;
+        }
+        if (!replay) {
+            return conn;
+        }
+        discard(conn, keepAlive);
+        return openConnection(keepAlive, cacheEntry);
+    }
+
+    private boolean refreshCredentials(HttpURLConnection conn) throws HttpClientException {
+        if (content != null && !content.isReplayable()) {
+            return false;
+        }
+        boolean refreshed = false;
+        for (final HttpRequestHandler connHandler : reqHandlers) {
+            try {
+                refreshed |= connHandler.onUnauthorized(conn);
+            } catch (HttpClientException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new HttpClientException("Failed to refresh credentials for " + uri, e);
+            }
+        }
+        return refreshed;
+    }
+
+    /**
+     * Skip a response which is not returned.
+     */
+    private void discard(HttpURLConnection conn, boolean keepAlive) {
+        boolean reusable = false;
+        InputStream in = null;
+        try {
+            in = getErrorStream(conn);
+            if (in != null) {
+                while (in.read(buffer) != -1) {
+                    ;
                 }
-            } else {
-                throw new HttpClientException("Response timeout from " + uri, e);
             }
-        } catch (IOException e) {
-            throw new HttpClientException("Connection failed to " + uri, e);
+            reusable = true;
+        } catch (IOException ignore) {
         } finally {
-            if (conn != null) {
-                if (payloadStream != null) {
-                    // Fully read Http response:
-                    // http://docs.oracle.com/javase/6/docs/technotes/guides/net/http-keepalive.html
-                    try {
-                        while (payloadStream.read(buffer) != -1) {
-                            ;
-                        }
-                    } catch (IOException ignore) {
-                    }
-                    payloadStream.forceClose();
+            IOUtils.close(in);
+        }
+        release(conn, keepAlive && reusable);
+    }
+
+    /**
+     * Release a connection once the response is read.
+     * @param reusable <code>true</code> if the connection can be returned to
+     *            the pool
+     */
+    private static void release(HttpURLConnection conn, boolean reusable) {
+        if (!reusable) {
+            // The connection cannot be returned to the pool: the underlying
+            // socket is closed.
+            conn.disconnect();
+        }
+    }
+
+    private int getStatusCode(HttpURLConnection conn) throws IOException, HttpClientException {
+        final int statusCode = conn.getResponseCode();
+        if (statusCode == -1) {
+            throw new HttpClientException("Invalid response from " + uri);
+        }
+        return statusCode;
+    }
+
+    private void checkStatusCode(int statusCode) throws HttpClientException {
+        if (!expectedStatusCodes.isEmpty() && !expectedStatusCodes.contains(statusCode)) {
+            throw new HttpClientException("Expected status code " + expectedStatusCodes + ", got " + statusCode);
+        } else if (expectedStatusCodes.isEmpty() && statusCode / 100 != 2) {
+            throw new HttpClientException("Expected status code 2xx, got " + statusCode);
+        }
+    }
+
+    private Map<String, List<String>> getHeaderFields(HttpURLConnection conn) {
+        final Map<String, List<String>> headerFields = conn.getHeaderFields();
+        if (headerFields == null) {
+            return NO_HEADERS;
+        }
+        if (hc.getPlatform().getSdkVersion() < Build.VERSION_CODES.GINGERBREAD) {
+            return HttpResponse.normalizeHeaderNames(headerFields);
+        }
+        return headerFields;
+    }
+
+    private void storeCookies(URL url, Map<String, List<String>> headerFields) {
+        List<String> newCookies = null;
+        for (final Map.Entry<String, List<String>> e : headerFields.entrySet()) {
+            if ("Set-Cookie".equalsIgnoreCase(e.getKey()) && e.getValue() != null) {
+                if (newCookies == null) {
+                    newCookies = new ArrayList<String>(e.getValue());
+                } else {
+                    newCookies.addAll(e.getValue());
                 }
-                conn.disconnect();
             }
         }
+        if (newCookies != null) {
+            hc.getCookieJar().store(url, newCookies);
+        }
+    }
+
+    /**
+     * Get cookies sent with this request.
+     */
+    private Map<String, String> getCookies() {
+        try {
+            return hc.getCookieJar().getCookies(new URL(uri));
+        } catch (MalformedURLException e) {
+            return new HashMap<String, String>(0);
+        }
+    }
+
+    private void handleResponse(HttpResponse resp) throws HttpClientException {
+        try {
+            handler.onResponse(resp);
+        } catch (HttpClientException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new HttpClientException("Error in response handler", e);
+        }
+    }
+
+    private HttpResponse handleTimeout(SocketTimeoutException e) throws HttpClientException {
+        final HttpClientException timeout = new HttpClientException("Response timeout from " + uri, e);
+        if (handler == null) {
+            throw timeout;
+        }
+        // The handler may not throw an error: the call is reported as failed
+        // before.
+        call.failed(timeout);
+        try {
+            handler.onTimeout();
+            return null;
+        } catch (HttpClientException e2) {
+            throw e2;
+        } catch (Exception e2) {
+            throw new HttpClientException("Error in response handler", e2);
+        }
+    }
+
+    private byte[] readFully(InputStream in) throws IOException {
+        if (in == null) {
+            return new byte[0];
+        }
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+        for (int bytesRead; (bytesRead = in.read(buffer)) != -1;) {
+            out.write(buffer, 0, bytesRead);
+        }
+        return out.toByteArray();
     }
 
     private static boolean isStatusCodeError(int sc) {
@@ -399,12 +870,25 @@ public final class HttpRequestBuilder {
         }
     }
 
+    /**
+     * Get <code>Content-Encoding</code> header values. Header names are not
+     * matched case-sensitively, since servers do not agree on their case.
+     */
+    private static List<String> getContentEncodings(HttpURLConnection conn) {
+        for (final Map.Entry<String, List<String>> e : conn.getHeaderFields().entrySet()) {
+            if ("Content-Encoding".equalsIgnoreCase(e.getKey())) {
+                return e.getValue();
+            }
+        }
+        return null;
+    }
+
     /**
      * Open the {@link InputStream} of an Http response. This method supports
      * GZIP and DEFLATE responses.
      */
     private static InputStream getInputStream(HttpURLConnection conn) throws IOException {
-        final List<String> contentEncodingValues = conn.getHeaderFields().get("Content-Encoding");
+        final List<String> contentEncodingValues = getContentEncodings(conn);
         if (contentEncodingValues != null) {
             for (final String contentEncoding : contentEncodingValues) {
                 if (contentEncoding != null) {
@@ -425,132 +909,34 @@ public final class HttpRequestBuilder {
      * supports GZIP and DEFLATE responses.
      */
     private static InputStream getErrorStream(HttpURLConnection conn) throws IOException {
-        final List<String> contentEncodingValues = conn.getHeaderFields().get("Content-Encoding");
+        final InputStream errorStream = conn.getErrorStream();
+        if (errorStream == null) {
+            // The error response has no content.
+            return new ByteArrayInputStream(new byte[0]);
+        }
+        final List<String> contentEncodingValues = getContentEncodings(conn);
         if (contentEncodingValues != null) {
             for (final String contentEncoding : contentEncodingValues) {
                 if (contentEncoding != null) {
                     if (contentEncoding.contains("gzip")) {
-                        return new GZIPInputStream(conn.getErrorStream());
+                        return new GZIPInputStream(errorStream);
                     }
                     if (contentEncoding.contains("deflate")) {
-                        return new InflaterInputStream(conn.getErrorStream(), new Inflater(true));
+                        return new InflaterInputStream(errorStream, new Inflater(true));
                     }
                 }
             }
         }
-        return conn.getErrorStream();
-    }
-
-    private static KeyStore loadCertificates(Context context) throws IOException {
-        try {
-            final KeyStore localTrustStore = KeyStore.getInstance("BKS");
-            final InputStream in = context.getResources().openRawResource(R.raw.hc_keystore);
-            try {
-                localTrustStore.load(in, null);
-            } finally {
-                in.close();
-            }
-
-            return localTrustStore;
-        } catch (Exception e) {
-            final IOException ioe = new IOException("Failed to load SSL certificates");
-            ioe.initCause(e);
-            throw ioe;
-        }
+        return errorStream;
     }
 
     /**
      * Setup SSL connection.
      */
-    private static void setupSecureConnection(Context context, HttpsURLConnection conn) throws IOException {
-        final SSLContext sslContext;
-        try {
-            // SSL certificates are provided by the Guardian Project:
-            // https://github.com/guardianproject/cacert
-            if (trustManagers == null) {
-                // Load SSL certificates:
-                // http://nelenkov.blogspot.com/2011/12/using-custom-certificate-trust-store-on.html
-                // Earlier Android versions do not have updated root CA
-                // certificates, resulting in connection errors.
-                final KeyStore keyStore = loadCertificates(context);
-
-                final CustomTrustManager customTrustManager = new CustomTrustManager(keyStore);
-                trustManagers = new TrustManager[] { customTrustManager };
-            }
-
-            // Init SSL connection with custom certificates.
-            // The same SecureRandom instance is used for every connection to
-            // speed up initialization.
-            sslContext = SSLContext.getInstance("TLS");
-            sslContext.init(null, trustManagers, SECURE_RANDOM);
-        } catch (GeneralSecurityException e) {
-            final IOException ioe = new IOException("Failed to initialize SSL engine");
-            ioe.initCause(e);
-            throw ioe;
-        }
-
-        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
-            // Fix slow read:
-            // http://code.google.com/p/android/issues/detail?id=13117
-            // Prior to ICS, the host name is still resolved even if we already
-            // know its IP address, for each connection.
-            final SSLSocketFactory delegate = sslContext.getSocketFactory();
-            final SSLSocketFactory socketFactory = new SSLSocketFactory() {
-                @Override
-                public Socket createSocket(String host, int port) throws IOException, UnknownHostException {
-                    InetAddress addr = InetAddress.getByName(host);
-                    injectHostname(addr, host);
-                    return delegate.createSocket(addr, port);
-                }
-
-                @Override
-                public Socket createSocket(InetAddress host, int port) throws IOException {
-                    return delegate.createSocket(host, port);
-                }
-
-                @Override
-                public Socket createSocket(String host, int port, InetAddress localHost, int localPort)
-                        throws IOException, UnknownHostException {
-                    return delegate.createSocket(host, port, localHost, localPort);
-                }
-
-                @Override
-                public Socket createSocket(InetAddress address, int port, InetAddress localAddress,
-                        int localPort) throws IOException {
-                    return delegate.createSocket(address, port, localAddress, localPort);
-                }
-
-                private void injectHostname(InetAddress address, String host) {
-                    try {
-                        Field field = InetAddress.class.getDeclaredField("hostName");
-                        field.setAccessible(true);
-                        field.set(address, host);
-                    } catch (Exception ignored) {
-                    }
-                }
-
-                @Override
-                public Socket createSocket(Socket s, String host, int port, boolean autoClose)
-                        throws IOException {
-                    injectHostname(s.getInetAddress(), host);
-                    return delegate.createSocket(s, host, port, autoClose);
-                }
-
-                @Override
-                public String[] getDefaultCipherSuites() {
-                    return delegate.getDefaultCipherSuites();
-                }
-
-                @Override
-                public String[] getSupportedCipherSuites() {
-                    return delegate.getSupportedCipherSuites();
-                }
-            };
-            conn.setSSLSocketFactory(socketFactory);
-        } else {
-            conn.setSSLSocketFactory(sslContext.getSocketFactory());
-        }
-
-        conn.setHostnameVerifier(new BrowserCompatHostnameVerifier());
+    private static void setupSecureConnection(Platform platform, HttpsURLConnection conn) throws IOException {
+        // The socket factory is shared by every connection: this way the
+        // connection pool and SSL session resumption work across requests.
+        conn.setSSLSocketFactory(CustomSSLSocketFactory.getInstance(platform));
+        conn.setHostnameVerifier(platform.getHostnameVerifier());
     }
 }
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.httpclient;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Share a single network exchange between identical requests in flight. The
+ * first request is sent, while the others wait for its response.
+ * @author Pixmob
+ */
+final class HttpRequestCoalescer {
+    private final Map<Object, InFlightRequest> inFlightRequests = new HashMap<Object, InFlightRequest>(4);
+
+    /**
+     * Execute a request, or wait for the response of an identical request.
+     * @param key
+     *            key identifying the request
+     * @param req
+     *            request to execute if no identical request is in flight
+     */
+    public BufferedResponse execute(Object key, HttpRequestBuilder req) throws IOException, HttpClientException {
+        final InFlightRequest inFlightReq;
+        final boolean owner;
+        synchronized (inFlightRequests) {
+            final InFlightRequest currentReq = inFlightRequests.get(key);
+            owner = currentReq == null;
+            if (owner) {
+                inFlightReq = new InFlightRequest();
+                inFlightRequests.put(key, inFlightReq);
+            } else {
+                inFlightReq = currentReq;
+            }
+        }
+
+        if (owner) {
+            try {
+                inFlightReq.response = req.executeBuffered();
+            } catch (IOException e) {
+                inFlightReq.ioError = e;
+            } catch (HttpClientException e) {
+                inFlightReq.error = e;
+            } finally {
+                synchronized (inFlightRequests) {
+                    inFlightRequests.remove(key);
+                }
+                inFlightReq.done.countDown();
+            }
+        } else {
+            try {
+                inFlightReq.done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new HttpClientException("Request interrupted");
+            }
+        }
+
+        if (inFlightReq.ioError != null) {
+            throw inFlightReq.ioError;
+        }
+        if (inFlightReq.error != null) {
+            throw inFlightReq.error;
+        }
+        if (inFlightReq.response == null) {
+            // The owner failed with an unexpected error.
+            throw new HttpClientException("Request failed");
+        }
+        return inFlightReq.response;
+    }
+
+    /**
+     * Request in flight.
+     */
+    private static class InFlightRequest {
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile BufferedResponse response;
+        volatile IOException ioError;
+        volatile HttpClientException error;
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.httpclient;
+
+import static org.pixmob.httpclient.Constants.TAG;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Execute asynchronous requests for a {@link HttpClient} instance. Requests
+ * are queued in submission order, and started as soon as the global and the
+ * per-host concurrency limits allow it. Worker threads are created on demand,
+ * and released when they are idle.
+ * @author Pixmob
+ */
+final class HttpRequestDispatcher {
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+    private final HttpClient hc;
+    private final LinkedList<AsyncRequest> readyRequests = new LinkedList<AsyncRequest>();
+    private final List<AsyncRequest> runningRequests = new ArrayList<AsyncRequest>(4);
+    private ExecutorService executor;
+
+    public HttpRequestDispatcher(final HttpClient hc) {
+        this.hc = hc;
+    }
+
+    /**
+     * Queue a request for execution.
+     * @param onDone
+     *            run when the request is completed or canceled, may be
+     *            <code>null</code>
+     */
+    public Future<HttpResponse> enqueue(final HttpRequestBuilder req, String host, final HttpCall call,
+            final Runnable onDone) {
+        final AsyncRequest asyncReq = new AsyncRequest(new FutureTask<HttpResponse>(new Callable<HttpResponse>() {
+            public HttpResponse call() throws Exception {
+                return req.execute(call);
+            }
+        }) {
+            @Override
+            protected void done() {
+                if (onDone != null) {
+                    onDone.run();
+                }
+            }
+        }, host);
+        synchronized (this) {
+            readyRequests.add(asyncReq);
+            promoteRequests();
+        }
+        return asyncReq.future;
+    }
+
+    /**
+     * Start queued requests, until concurrency limits are reached.
+     */
+    synchronized void promoteRequests() {
+        final int maxRequests = hc.getMaxConcurrentRequests();
+        final int maxRequestsPerHost = hc.getMaxConcurrentRequestsPerHost();
+        for (final Iterator<AsyncRequest> i = readyRequests.iterator(); i.hasNext()
+                && runningRequests.size() < maxRequests;) {
+            final AsyncRequest req = i.next();
+            if (req.future.isCancelled()) {
+                i.remove();
+            } else if (runningRequestsForHost(req.host) < maxRequestsPerHost) {
+                i.remove();
+                runningRequests.add(req);
+                getExecutor().execute(req);
+            }
+        }
+    }
+
+    private synchronized void finished(AsyncRequest req) {
+        runningRequests.remove(req);
+        promoteRequests();
+    }
+
+    private int runningRequestsForHost(String host) {
+        int count = 0;
+        for (final AsyncRequest req : runningRequests) {
+            if (req.host.equals(host)) {
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    private ExecutorService getExecutor() {
+        if (executor == null) {
+            // Concurrency is bounded by this dispatcher: the executor never
+            // needs to reject a request.
+            executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            final Thread t = new Thread(r, TAG + "-" + THREAD_COUNT.incrementAndGet());
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+        }
+        return executor;
+    }
+
+    /**
+     * Queued request.
+     */
+    private class AsyncRequest implements Runnable {
+        final FutureTask<HttpResponse> future;
+        final String host;
+
+        public AsyncRequest(final FutureTask<HttpResponse> future, final String host) {
+            this.future = future;
+            this.host = host;
+        }
+
+        public void run() {
+            try {
+                future.run();
+            } finally {
+                finished(this);
+            }
+        }
+    }
+}
@@ -24,4 +24,17 @@ import java.net.HttpURLConnection;
 public class HttpRequestHandler {
     public void onRequest(HttpURLConnection conn) throws Exception {
     }
+
+    /**
+     * This method is invoked when the server rejected the request credentials
+     * (status code 401). Authenticators able to refresh their credentials
+     * should invalidate them and return <code>true</code>: the request is then
+     * sent again once, and {@link #onRequest(HttpURLConnection)} is invoked
+     * with a new connection. The request is not sent again if its content
+     * cannot be replayed.
+     * @see HttpRequestBody#isReplayable()
+     */
+    public boolean onUnauthorized(HttpURLConnection conn) throws Exception {
+        return false;
+    }
 }
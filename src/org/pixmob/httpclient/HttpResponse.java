@@ -15,6 +15,7 @@
  */
 package org.pixmob.httpclient;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -26,8 +27,6 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-import android.os.Build;
-
 /**
  * When the Http server receives a request from a client, the Http response is
  * sent back.
@@ -44,32 +43,38 @@ public final class HttpResponse {
         this.statusCode = statusCode;
         this.payload = payload;
         this.cookies = Collections.unmodifiableMap(cookies);
+        this.headers = Collections.unmodifiableMap(rawHeaders);
+    }
 
-        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.GINGERBREAD) {
-            // Before Gingerbread, Android has a bug where all headers are
-            // stored in lower-case:
-            // http://code.google.com/p/android/issues/detail?id=6684
-            final Map<String, List<String>> newHeaders = new HashMap<String, List<String>>(rawHeaders.size());
-            for (final Map.Entry<String, List<String>> e : rawHeaders.entrySet()) {
-                final String key = e.getKey();
-                final int keyLen = key.length();
-                final StringBuilder newKey = new StringBuilder(keyLen);
-                for (int i = 0; i < keyLen; ++i) {
-                    final char c = key.charAt(i);
-                    final char c2;
-                    if (i == 0 || key.charAt(i - 1) == '-') {
-                        c2 = Character.toUpperCase(c);
-                    } else {
-                        c2 = c;
-                    }
-                    newKey.append(c2);
+    /**
+     * Restore header name case. Before Gingerbread, Android has a bug where all
+     * headers are stored in lower-case:
+     * http://code.google.com/p/android/issues/detail?id=6684
+     */
+    static Map<String, List<String>> normalizeHeaderNames(Map<String, List<String>> rawHeaders) {
+        final Map<String, List<String>> newHeaders = new HashMap<String, List<String>>(rawHeaders.size());
+        for (final Map.Entry<String, List<String>> e : rawHeaders.entrySet()) {
+            final String key = e.getKey();
+            if (key == null) {
+                // Status line.
+                newHeaders.put(key, e.getValue());
+                continue;
+            }
+            final int keyLen = key.length();
+            final StringBuilder newKey = new StringBuilder(keyLen);
+            for (int i = 0; i < keyLen; ++i) {
+                final char c = key.charAt(i);
+                final char c2;
+                if (i == 0 || key.charAt(i - 1) == '-') {
+                    c2 = Character.toUpperCase(c);
+                } else {
+                    c2 = c;
                 }
-                newHeaders.put(newKey.toString(), e.getValue());
+                newKey.append(c2);
             }
-            this.headers = Collections.unmodifiableMap(newHeaders);
-        } else {
-            this.headers = Collections.unmodifiableMap(rawHeaders);
+            newHeaders.put(newKey.toString(), e.getValue());
         }
+        return newHeaders;
     }
 
     /**
@@ -105,15 +110,66 @@ public final class HttpResponse {
         return payload;
     }
 
-    void preload(File temp) throws IOException {
-        final FileOutputStream out = new FileOutputStream(temp);
-        final byte[] inBuf = new byte[1024];
+    /**
+     * Read the whole payload, so that it can be used after the connection is
+     * closed. The payload is kept in memory if it is small enough, otherwise
+     * it is written to a temporary file.
+     * @param tempDir
+     *            directory where large payloads are stored
+     * @param maxMemorySize
+     *            maximum size of a payload kept in memory
+     */
+    void preload(File tempDir, int maxMemorySize) throws IOException {
+        // Use the payload length (when known) as a hint for the buffer size.
+        int contentLength = -1;
+        final String contentLengthHeader = getFirstHeaderValue("Content-Length");
+        if (contentLengthHeader != null) {
+            try {
+                contentLength = Integer.parseInt(contentLengthHeader.trim());
+            } catch (NumberFormatException ignore) {
+            }
+        }
+
         final InputStream in = getPayload();
-        for (int bytesRead = 0; (bytesRead = in.read(inBuf)) != -1;) {
-            out.write(inBuf, 0, bytesRead);
+        final long bufLimit = maxMemorySize + 1L;
+        byte[] buf = new byte[(int) (contentLength >= 0 && contentLength < bufLimit ? contentLength + 1L : Math
+                .min(bufLimit, 4096))];
+        int count = 0;
+        for (int bytesRead = 0; (bytesRead = in.read(buf, count, buf.length - count)) != -1;) {
+            count += bytesRead;
+            if (count == buf.length) {
+                if (count > maxMemorySize) {
+                    // The payload is too large: spill to disk.
+                    spill(buf, count, in, tempDir);
+                    return;
+                }
+                final byte[] newBuf = new byte[(int) Math.min(bufLimit, buf.length * 2L)];
+                System.arraycopy(buf, 0, newBuf, 0, count);
+                buf = newBuf;
+            }
         }
 
-        payload = new FileInputStream(temp);
+        payload = new ByteArrayInputStream(buf, 0, count);
+    }
+
+    private void spill(byte[] buf, int count, InputStream in, File tempDir) throws IOException {
+        final File temp = File.createTempFile("httpclient-req-", ".cache", tempDir);
+        try {
+            final FileOutputStream out = new FileOutputStream(temp);
+            try {
+                out.write(buf, 0, count);
+                for (int bytesRead = 0; (bytesRead = in.read(buf)) != -1;) {
+                    out.write(buf, 0, bytesRead);
+                }
+            } finally {
+                out.close();
+            }
+
+            payload = new FileInputStream(temp);
+        } finally {
+            // The file is still readable until the stream is closed.
+            temp.delete();
+        }
     }
 
     public void read(StringBuilder buffer) throws IOException {
@@ -145,10 +201,19 @@ public final class HttpResponse {
     }
 
     /**
-     * Get the first header value, or <code>null</code> if unset.
+     * Get the first header value, or <code>null</code> if unset. Header names
+     * are case-insensitive.
      */
     public String getFirstHeaderValue(String name) {
-        final List<String> values = headers.get(name);
+        List<String> values = headers.get(name);
+        if (values == null) {
+            for (final Map.Entry<String, List<String>> e : headers.entrySet()) {
+                if (name.equalsIgnoreCase(e.getKey())) {
+                    values = e.getValue();
+                    break;
+                }
+            }
+        }
         if (values == null || values.isEmpty()) {
             return null;
         }
@@ -0,0 +1,795 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.httpclient;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Disk cache for Http responses, following the caching rules from RFC 7234.
+ * Each response is stored in two files: a metadata file holding the status
+ * code and the headers, and a payload file. Entries are listed in a journal,
+ * which keeps track of the access order: the least recently used entries are
+ * evicted when the cache grows beyond its maximum size.
+ * @author Pixmob
+ */
+final class HttpResponseCache {
+    private static final String JOURNAL_FILE = "journal";
+    private static final String JOURNAL_CLEAN = "CLEAN";
+    private static final String JOURNAL_READ = "READ";
+    private static final String JOURNAL_REMOVE = "REMOVE";
+    private static final int JOURNAL_COMPACT_THRESHOLD = 2000;
+    private static final Map<File, HttpResponseCache> INSTANCES = new HashMap<File, HttpResponseCache>(1);
+    private static final AtomicInteger TEMP_FILE_COUNT = new AtomicInteger();
+    private final File dir;
+    private final Platform platform;
+    private final LinkedHashMap<String, Long> entrySizes = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private final AtomicInteger hitCount = new AtomicInteger();
+    private final AtomicInteger missCount = new AtomicInteger();
+    private final AtomicInteger revalidationCount = new AtomicInteger();
+    private long maxSize;
+    private long size;
+    private Writer journalWriter;
+    private int journalLineCount;
+
+    private HttpResponseCache(final File dir, final Platform platform) {
+        this.dir = dir;
+        this.platform = platform;
+    }
+
+    /**
+     * Get the cache stored in a directory. Every {@link HttpClient} instance
+     * using the same directory shares the same cache.
+     */
+    public static HttpResponseCache getInstance(File dir, long maxSize, Platform platform) {
+        synchronized (INSTANCES) {
+            HttpResponseCache cache = INSTANCES.get(dir);
+            if (cache == null) {
+                cache = new HttpResponseCache(dir, platform);
+                INSTANCES.put(dir, cache);
+            }
+            cache.setMaxSize(maxSize);
+            return cache;
+        }
+    }
+
+    public int getHitCount() {
+        return hitCount.get();
+    }
+
+    public int getMissCount() {
+        return missCount.get();
+    }
+
+    public int getRevalidationCount() {
+        return revalidationCount.get();
+    }
+
+    void recordHit() {
+        hitCount.incrementAndGet();
+    }
+
+    void recordMiss() {
+        missCount.incrementAndGet();
+    }
+
+    private synchronized void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+        if (journalWriter != null) {
+            trimToSize();
+        }
+    }
+
+    /**
+     * Get the cached response for a request, or <code>null</code> if none is
+     * available. The returned entry may need to be revalidated.
+     * @param uri
+     *            request URI
+     * @param requestHeaders
+     *            request headers, used for matching the <code>Vary</code>
+     *            response header
+     */
+    public synchronized Entry get(String uri, Map<String, String> requestHeaders) {
+        final String key = getKey(uri);
+        try {
+            open();
+            if (!entrySizes.containsKey(key)) {
+                return null;
+            }
+            final Entry entry = readEntry(key);
+            if (!uri.equals(entry.uri) || !entry.matchesVary(requestHeaders)) {
+                return null;
+            }
+            appendJournal(JOURNAL_READ, key, 0);
+            return entry;
+        } catch (IOException e) {
+            platform.logWarning("Failed to read cached response for " + uri, e);
+            remove(key);
+            return null;
+        }
+    }
+
+    /**
+     * Store a response. The payload is written to the cache while it is read
+     * from the returned stream: the response is only stored if the stream is
+     * fully read. If the response cannot be stored, a previous response for
+     * the same request is removed from the cache.
+     */
+    public InputStream put(String uri, Map<String, String> requestHeaders, long requestTime, int statusCode,
+            Map<String, List<String>> responseHeaders, InputStream payload) {
+        final String key = getKey(uri);
+        final Entry entry = new Entry(uri, statusCode, requestTime, System.currentTimeMillis(), getVaryHeaders(
+                responseHeaders, requestHeaders), filterHeaders(responseHeaders));
+        if (!isCacheable(statusCode, requestHeaders, responseHeaders)) {
+            synchronized (this) {
+                remove(key);
+            }
+            return payload;
+        }
+
+        final File tempFile = new File(dir, key + ".tmp" + TEMP_FILE_COUNT.incrementAndGet());
+        final OutputStream out;
+        try {
+            synchronized (this) {
+                open();
+            }
+            out = new FileOutputStream(tempFile);
+        } catch (IOException e) {
+            platform.logWarning("Failed to cache response for " + uri, e);
+            return payload;
+        }
+        return new CacheWritingInputStream(payload, out, tempFile, key, entry);
+    }
+
+    /**
+     * Update a cached response with the headers of a <code>304</code> response.
+     * @return the updated entry
+     */
+    public synchronized Entry update(Entry entry, long requestTime, Map<String, List<String>> responseHeaders) {
+        revalidationCount.incrementAndGet();
+        final Map<String, List<String>> headers = new HashMap<String, List<String>>(entry.headers);
+        for (final Map.Entry<String, List<String>> e : filterHeaders(responseHeaders).entrySet()) {
+            final String name = e.getKey();
+            for (final Iterator<String> i = headers.keySet().iterator(); i.hasNext();) {
+                if (name.equalsIgnoreCase(i.next())) {
+                    i.remove();
+                }
+            }
+            headers.put(name, e.getValue());
+        }
+
+        final Entry newEntry = new Entry(entry.uri, entry.statusCode, requestTime, System.currentTimeMillis(),
+                entry.varyHeaders, headers);
+        final String key = getKey(entry.uri);
+        try {
+            open();
+            if (entrySizes.containsKey(key)) {
+                writeMetadata(key, newEntry);
+            }
+        } catch (IOException e) {
+            platform.logWarning("Failed to update cached response for " + entry.uri, e);
+        }
+        return newEntry;
+    }
+
+    private synchronized void commit(String key, Entry entry, File tempFile) {
+        try {
+            open();
+            final File payloadFile = getPayloadFile(key);
+            if (!tempFile.renameTo(payloadFile)) {
+                throw new IOException("Cannot rename " + tempFile + " to " + payloadFile);
+            }
+            // The stored payload is decoded: its length may differ from the
+            // length sent by the server.
+            final List<String> contentLength = new ArrayList<String>(1);
+            contentLength.add(String.valueOf(payloadFile.length()));
+            entry.headers.put("Content-Length", contentLength);
+            writeMetadata(key, entry);
+
+            final Long oldSize = entrySizes.put(key, payloadFile.length());
+            if (oldSize != null) {
+                size -= oldSize;
+            }
+            size += payloadFile.length();
+            appendJournal(JOURNAL_CLEAN, key, payloadFile.length());
+            trimToSize();
+        } catch (IOException e) {
+            platform.logWarning("Failed to cache response for " + entry.uri, e);
+            tempFile.delete();
+            remove(key);
+        }
+    }
+
+    private void remove(String key) {
+        getPayloadFile(key).delete();
+        getMetadataFile(key).delete();
+        final Long oldSize = entrySizes.remove(key);
+        if (oldSize != null) {
+            size -= oldSize;
+            try {
+                appendJournal(JOURNAL_REMOVE, key, 0);
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    private void trimToSize() {
+        while (size > maxSize && !entrySizes.isEmpty()) {
+            remove(entrySizes.keySet().iterator().next());
+        }
+    }
+
+    /**
+     * Open the cache journal, and load entries.
+     */
+    private void open() throws IOException {
+        if (journalWriter != null) {
+            return;
+        }
+
+        final File journalFile = new File(dir, JOURNAL_FILE);
+        if (journalFile.exists()) {
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(journalFile), "UTF-8"));
+            try {
+                for (String line; (line = reader.readLine()) != null;) {
+                    final String[] parts = line.split(" ");
+                    if (parts.length != 3) {
+                        continue;
+                    }
+                    final String op = parts[0];
+                    final String key = parts[1];
+                    if (JOURNAL_CLEAN.equals(op)) {
+                        final Long oldSize = entrySizes.put(key, Long.parseLong(parts[2]));
+                        if (oldSize != null) {
+                            size -= oldSize;
+                        }
+                        size += Long.parseLong(parts[2]);
+                    } else if (JOURNAL_REMOVE.equals(op)) {
+                        final Long oldSize = entrySizes.remove(key);
+                        if (oldSize != null) {
+                            size -= oldSize;
+                        }
+                    } else if (JOURNAL_READ.equals(op)) {
+                        entrySizes.get(key);
+                    }
+                    ++journalLineCount;
+                }
+            } catch (NumberFormatException e) {
+                platform.logWarning("Corrupted cache journal: " + journalFile, null);
+            } finally {
+                IOUtils.close(reader);
+            }
+        }
+
+        // Remove files left by an interrupted write.
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                final String name = file.getName();
+                final int i = name.indexOf('.');
+                if (i != -1 && !entrySizes.containsKey(name.substring(0, i))) {
+                    file.delete();
+                }
+            }
+        }
+
+        rebuildJournal();
+        trimToSize();
+    }
+
+    /**
+     * Write a compact journal, with a single line per entry.
+     */
+    private void rebuildJournal() throws IOException {
+        IOUtils.close(journalWriter);
+        journalWriter = null;
+
+        dir.mkdirs();
+        final File journalFile = new File(dir, JOURNAL_FILE);
+        final File tempJournalFile = new File(dir, JOURNAL_FILE + ".tmp");
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempJournalFile),
+                "UTF-8"));
+        try {
+            for (final Map.Entry<String, Long> e : entrySizes.entrySet()) {
+                writer.write(JOURNAL_CLEAN + " " + e.getKey() + " " + e.getValue() + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+        if (!tempJournalFile.renameTo(journalFile)) {
+            throw new IOException("Cannot rename " + tempJournalFile + " to " + journalFile);
+        }
+
+        journalLineCount = entrySizes.size();
+        journalWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journalFile, true), "UTF-8"));
+    }
+
+    private void appendJournal(String op, String key, long entrySize) throws IOException {
+        journalWriter.write(op + " " + key + " " + entrySize + "\n");
+        journalWriter.flush();
+        if (++journalLineCount > JOURNAL_COMPACT_THRESHOLD && journalLineCount > 2 * entrySizes.size()) {
+            rebuildJournal();
+        }
+    }
+
+    private Entry readEntry(String key) throws IOException {
+        final DataInputStream in = new DataInputStream(new FileInputStream(getMetadataFile(key)));
+        try {
+            final String uri = in.readUTF();
+            final int statusCode = in.readInt();
+            final long requestTime = in.readLong();
+            final long responseTime = in.readLong();
+            final Map<String, String> varyHeaders = new HashMap<String, String>(2);
+            for (int i = in.readInt(); i > 0; --i) {
+                final String name = in.readUTF();
+                varyHeaders.put(name, in.readBoolean() ? in.readUTF() : null);
+            }
+            final Map<String, List<String>> headers = new HashMap<String, List<String>>(16);
+            for (int i = in.readInt(); i > 0; --i) {
+                final String name = in.readUTF();
+                final int valueCount = in.readInt();
+                final List<String> values = new ArrayList<String>(valueCount);
+                for (int j = 0; j < valueCount; ++j) {
+                    values.add(in.readUTF());
+                }
+                headers.put(name, values);
+            }
+            final Entry entry = new Entry(uri, statusCode, requestTime, responseTime, varyHeaders, headers);
+            entry.payloadFile = getPayloadFile(key);
+            return entry;
+        } finally {
+            IOUtils.close(in);
+        }
+    }
+
+    private void writeMetadata(String key, Entry entry) throws IOException {
+        final File tempFile = new File(dir, key + ".tmp" + TEMP_FILE_COUNT.incrementAndGet());
+        final DataOutputStream out = new DataOutputStream(new FileOutputStream(tempFile));
+        try {
+            out.writeUTF(entry.uri);
+            out.writeInt(entry.statusCode);
+            out.writeLong(entry.requestTime);
+            out.writeLong(entry.responseTime);
+            out.writeInt(entry.varyHeaders.size());
+            for (final Map.Entry<String, String> e : entry.varyHeaders.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeBoolean(e.getValue() != null);
+                if (e.getValue() != null) {
+                    out.writeUTF(e.getValue());
+                }
+            }
+            out.writeInt(entry.headers.size());
+            for (final Map.Entry<String, List<String>> e : entry.headers.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeInt(e.getValue().size());
+                for (final String value : e.getValue()) {
+                    out.writeUTF(value);
+                }
+            }
+        } finally {
+            out.close();
+        }
+
+        final File metadataFile = getMetadataFile(key);
+        if (!tempFile.renameTo(metadataFile)) {
+            tempFile.delete();
+            throw new IOException("Cannot rename " + tempFile + " to " + metadataFile);
+        }
+        entry.payloadFile = getPayloadFile(key);
+    }
+
+    private File getMetadataFile(String key) {
+        return new File(dir, key + ".0");
+    }
+
+    private File getPayloadFile(String key) {
+        return new File(dir, key + ".1");
+    }
+
+    private static String getKey(String uri) {
+        try {
+            final MessageDigest md = MessageDigest.getInstance("MD5");
+            final byte[] digest = md.digest(uri.getBytes("UTF-8"));
+            final StringBuilder buf = new StringBuilder(digest.length * 2);
+            for (final byte b : digest) {
+                buf.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return buf.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not supported", e);
+        } catch (IOException e) {
+            throw new IllegalStateException("UTF-8 is not supported", e);
+        }
+    }
+
+    private static boolean isCacheable(int statusCode, Map<String, String> requestHeaders,
+            Map<String, List<String>> responseHeaders) {
+        if (statusCode != 200) {
+            return false;
+        }
+        final String varyHeader = getHeader(responseHeaders, "Vary");
+        if (varyHeader != null && varyHeader.contains("*")) {
+            return false;
+        }
+        final CacheControl requestCacheControl = new CacheControl(getHeader(requestHeaders, "Cache-Control"));
+        final CacheControl responseCacheControl = new CacheControl(getHeader(responseHeaders, "Cache-Control"));
+        if (requestCacheControl.noStore || responseCacheControl.noStore || responseCacheControl.isPrivate) {
+            // Private responses are intended for a single user, and this
+            // cache is shared by every client instance.
+            return false;
+        }
+
+        // Only store responses which may be reused without a full download.
+        return responseCacheControl.maxAgeSeconds > 0 || getHeader(responseHeaders, "Expires") != null
+                || getHeader(responseHeaders, "ETag") != null || getHeader(responseHeaders, "Last-Modified") != null;
+    }
+
+    /**
+     * Get request header values for every header listed in the
+     * <code>Vary</code> response header.
+     */
+    private static Map<String, String> getVaryHeaders(Map<String, List<String>> responseHeaders,
+            Map<String, String> requestHeaders) {
+        final Map<String, String> varyHeaders = new HashMap<String, String>(2);
+        final List<String> varyValues = getHeaders(responseHeaders, "Vary");
+        for (final String varyValue : varyValues) {
+            for (final String name : varyValue.split(",")) {
+                final String trimmedName = name.trim();
+                if (trimmedName.length() != 0) {
+                    varyHeaders.put(trimmedName, getHeader(requestHeaders, trimmedName));
+                }
+            }
+        }
+        return varyHeaders;
+    }
+
+    /**
+     * Remove headers which should not be stored. GZIP and DEFLATE payloads
+     * are decoded before they are stored, so the content encoding and the
+     * content length sent by the server do not apply to the stored payload.
+     */
+    private static Map<String, List<String>> filterHeaders(Map<String, List<String>> headers) {
+        final Map<String, List<String>> filteredHeaders = new HashMap<String, List<String>>(headers.size());
+        for (final Map.Entry<String, List<String>> e : headers.entrySet()) {
+            final String name = e.getKey();
+            if (name != null && e.getValue() != null && !"Set-Cookie".equalsIgnoreCase(name)
+                    && !"Content-Length".equalsIgnoreCase(name)
+                    && !("Content-Encoding".equalsIgnoreCase(name) && isDecoded(e.getValue()))) {
+                filteredHeaders.put(name, new ArrayList<String>(e.getValue()));
+            }
+        }
+        return filteredHeaders;
+    }
+
+    private static boolean isDecoded(List<String> contentEncodings) {
+        for (final String contentEncoding : contentEncodings) {
+            if (contentEncoding != null && (contentEncoding.contains("gzip") || contentEncoding.contains("deflate"))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static String getHeader(Map<String, ?> headers, String name) {
+        for (final Map.Entry<String, ?> e : headers.entrySet()) {
+            if (name.equalsIgnoreCase(e.getKey())) {
+                final Object value = e.getValue();
+                if (value instanceof List<?>) {
+                    final List<?> values = (List<?>) value;
+                    return values.isEmpty() ? null : (String) values.get(0);
+                }
+                return (String) value;
+            }
+        }
+        return null;
+    }
+
+    private static List<String> getHeaders(Map<String, List<String>> headers, String name) {
+        final List<String> values = new ArrayList<String>(1);
+        for (final Map.Entry<String, List<String>> e : headers.entrySet()) {
+            if (name.equalsIgnoreCase(e.getKey()) && e.getValue() != null) {
+                values.addAll(e.getValue());
+            }
+        }
+        return values;
+    }
+
+    private static long parseDate(String date) {
+        if (date == null) {
+            return -1;
+        }
+        final SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            return format.parse(date).getTime();
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Cached response.
+     */
+    public static final class Entry {
+        private final String uri;
+        private final int statusCode;
+        private final long requestTime;
+        private final long responseTime;
+        private final Map<String, String> varyHeaders;
+        private final Map<String, List<String>> headers;
+        private File payloadFile;
+
+        Entry(final String uri, final int statusCode, final long requestTime, final long responseTime,
+                final Map<String, String> varyHeaders, final Map<String, List<String>> headers) {
+            this.uri = uri;
+            this.statusCode = statusCode;
+            this.requestTime = requestTime;
+            this.responseTime = responseTime;
+            this.varyHeaders = varyHeaders;
+            this.headers = headers;
+        }
+
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+        public Map<String, List<String>> getHeaders() {
+            return headers;
+        }
+
+        public String getETag() {
+            return getHeader(headers, "ETag");
+        }
+
+        public String getLastModified() {
+            return getHeader(headers, "Last-Modified");
+        }
+
+        public InputStream openPayload() throws IOException {
+            return new FileInputStream(payloadFile);
+        }
+
+        boolean matchesVary(Map<String, String> requestHeaders) {
+            for (final Map.Entry<String, String> e : varyHeaders.entrySet()) {
+                final String value = getHeader(requestHeaders, e.getKey());
+                if (value == null ? e.getValue() != null : !value.equals(e.getValue())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Return <code>true</code> if this response can be used without
+         * revalidation.
+         */
+        public boolean isFresh(Map<String, String> requestHeaders) {
+            final CacheControl requestCacheControl = new CacheControl(getHeader(requestHeaders, "Cache-Control"));
+            final CacheControl responseCacheControl = new CacheControl(getHeader(headers, "Cache-Control"));
+            if (requestCacheControl.noCache || responseCacheControl.noCache
+                    || "no-cache".equalsIgnoreCase(getHeader(requestHeaders, "Pragma"))) {
+                return false;
+            }
+
+            long freshnessLifetime = getFreshnessLifetime(responseCacheControl);
+            if (requestCacheControl.maxAgeSeconds != -1) {
+                freshnessLifetime = Math.min(freshnessLifetime, requestCacheControl.maxAgeSeconds * 1000L);
+            }
+            return getAge() < freshnessLifetime;
+        }
+
+        /**
+         * Compute the response age in milliseconds (RFC 7234, section 4.2.3).
+         */
+        private long getAge() {
+            final long servedDate = parseDate(getHeader(headers, "Date"));
+            long apparentAge = servedDate == -1 ? 0 : Math.max(0, responseTime - servedDate);
+            final String ageHeader = getHeader(headers, "Age");
+            if (ageHeader != null) {
+                try {
+                    apparentAge = Math.max(apparentAge, Long.parseLong(ageHeader.trim()) * 1000L);
+                } catch (NumberFormatException ignore) {
+                }
+            }
+            final long responseDelay = responseTime - requestTime;
+            final long residentTime = System.currentTimeMillis() - responseTime;
+            return apparentAge + responseDelay + residentTime;
+        }
+
+        /**
+         * Compute the freshness lifetime in milliseconds (RFC 7234, section
+         * 4.2.1).
+         */
+        private long getFreshnessLifetime(CacheControl cacheControl) {
+            if (cacheControl.maxAgeSeconds != -1) {
+                return cacheControl.maxAgeSeconds * 1000L;
+            }
+            long servedDate = parseDate(getHeader(headers, "Date"));
+            if (servedDate == -1) {
+                servedDate = responseTime;
+            }
+            final long expires = parseDate(getHeader(headers, "Expires"));
+            if (expires != -1) {
+                return Math.max(0, expires - servedDate);
+            }
+            final long lastModified = parseDate(getHeader(headers, "Last-Modified"));
+            if (lastModified != -1 && uri.indexOf('?') == -1) {
+                // Heuristic freshness (RFC 7234, section 4.2.2).
+                return Math.max(0, (servedDate - lastModified) / 10);
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * Parsed <code>Cache-Control</code> header.
+     */
+    private static final class CacheControl {
+        boolean noCache;
+        boolean noStore;
+        boolean isPrivate;
+        int maxAgeSeconds = -1;
+
+        public CacheControl(final String header) {
+            if (header == null) {
+                return;
+            }
+            for (final String directive : header.split(",")) {
+                final String d = directive.trim().toLowerCase(Locale.US);
+                if (d.startsWith("no-cache")) {
+                    noCache = true;
+                } else if ("no-store".equals(d)) {
+                    noStore = true;
+                } else if (d.startsWith("private")) {
+                    isPrivate = true;
+                } else if (d.startsWith("max-age=")) {
+                    try {
+                        maxAgeSeconds = Integer.parseInt(d.substring(8).replace("\"", "").trim());
+                    } catch (NumberFormatException ignore) {
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * {@link InputStream} wrapper writing data to the cache while it is read.
+     * The response is stored when the end of the stream is reached.
+     */
+    private class CacheWritingInputStream extends FilterInputStream {
+        private final File tempFile;
+        private final String key;
+        private final Entry entry;
+        private OutputStream out;
+
+        public CacheWritingInputStream(final InputStream in, final OutputStream out, final File tempFile,
+                final String key, final Entry entry) {
+            super(in);
+            this.out = out;
+            this.tempFile = tempFile;
+            this.key = key;
+            this.entry = entry;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b == -1) {
+                done(true);
+            } else if (out != null) {
+                try {
+                    out.write(b);
+                } catch (IOException e) {
+                    done(false);
+                }
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            final int bytesRead;
+            try {
+                bytesRead = super.read(buffer, offset, length);
+            } catch (IOException e) {
+                done(false);
+                throw e;
+            }
+            if (bytesRead == -1) {
+                done(true);
+            } else if (out != null) {
+                try {
+                    out.write(buffer, offset, bytesRead);
+                } catch (IOException e) {
+                    done(false);
+                }
+            }
+            return bytesRead;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public long skip(long byteCount) throws IOException {
+            // Skipped bytes must be written to the cache.
+            final byte[] buffer = new byte[1024];
+            long skipped = 0;
+            while (skipped < byteCount) {
+                final int bytesRead = read(buffer, 0, (int) Math.min(buffer.length, byteCount - skipped));
+                if (bytesRead == -1) {
+                    break;
+                }
+                skipped += bytesRead;
+            }
+            return skipped;
+        }
+
+        @Override
+        public void close() throws IOException {
+            done(false);
+            super.close();
+        }
+
+        private void done(boolean complete) {
+            if (out == null) {
+                return;
+            }
+            boolean written = false;
+            try {
+                out.close();
+                written = complete;
+            } catch (IOException ignore) {
+            }
+            out = null;
+
+            if (written) {
+                commit(key, entry, tempFile);
+            } else {
+                tempFile.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.httpclient;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * The transport opens connections for requests sent by a {@link HttpClient}.
+ * The default implementation uses the platform {@link HttpURLConnection}
+ * engine. Subclass this class to send requests with another engine exposing
+ * the {@link HttpURLConnection} interface.
+ * @see HttpClient#setTransport(HttpTransport)
+ * @author Pixmob
+ */
+public class HttpTransport {
+    /**
+     * Transport using the platform engine.
+     */
+    public static final HttpTransport DEFAULT = new HttpTransport();
+
+    /**
+     * Open a connection to an URL. The connection must not be connected: the
+     * request is configured before it is sent.
+     */
+    public HttpURLConnection openConnection(URL url) throws IOException {
+        return (HttpURLConnection) url.openConnection();
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.httpclient;
+
+import static org.pixmob.httpclient.Constants.TAG;
+
+import java.io.File;
+import java.security.KeyStore;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+
+/**
+ * {@link Platform} implementation for a standard Java virtual machine, such as
+ * a backend service. Only system SSL certificates are trusted.
+ * @author Pixmob
+ */
+public final class JvmPlatform extends Platform {
+    private static final Logger LOGGER = Logger.getLogger(TAG);
+    private final File cacheDir;
+    private final File filesDir;
+
+    /**
+     * Create an instance using subdirectories of the system temporary
+     * directory and of the user home directory.
+     */
+    public JvmPlatform() {
+        this(new File(System.getProperty("java.io.tmpdir"), "pixmob-httpclient"), new File(
+                System.getProperty("user.home"), ".pixmob-httpclient"));
+    }
+
+    public JvmPlatform(final File cacheDir, final File filesDir) {
+        if (cacheDir == null) {
+            throw new IllegalArgumentException("Cache directory is required");
+        }
+        if (filesDir == null) {
+            throw new IllegalArgumentException("Files directory is required");
+        }
+        this.cacheDir = cacheDir;
+        this.filesDir = filesDir;
+    }
+
+    /**
+     * Create a new {@link HttpClient} instance using the default directories.
+     * This method can be called by code compiled without the Android classes.
+     * @see #JvmPlatform()
+     */
+    public static HttpClient newClient() {
+        return new HttpClient(new JvmPlatform());
+    }
+
+    /**
+     * Create a new {@link HttpClient} instance using these directories. This
+     * method can be called by code compiled without the Android classes.
+     */
+    public static HttpClient newClient(File cacheDir, File filesDir) {
+        return new HttpClient(new JvmPlatform(cacheDir, filesDir));
+    }
+
+    @Override
+    public File getCacheDir() {
+        cacheDir.mkdirs();
+        return cacheDir;
+    }
+
+    @Override
+    public File getFilesDir() {
+        filesDir.mkdirs();
+        return filesDir;
+    }
+
+    @Override
+    public KeyStore loadTrustStore() {
+        return null;
+    }
+
+    @Override
+    public HostnameVerifier getHostnameVerifier() {
+        return HttpsURLConnection.getDefaultHostnameVerifier();
+    }
+
+    @Override
+    public int getSdkVersion() {
+        return NO_SDK_VERSION;
+    }
+
+    @Override
+    public String getDefaultUserAgent() {
+        return "PixmobHttpClient (Java " + System.getProperty("java.version") + "; "
+                + System.getProperty("os.name") + ")";
+    }
+
+    @Override
+    public void logWarning(String message, Throwable error) {
+        LOGGER.log(Level.WARNING, message, error);
+    }
+}
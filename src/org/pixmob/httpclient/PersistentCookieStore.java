@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.httpclient;
+
+import static org.pixmob.httpclient.Constants.TAG;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.pixmob.httpclient.CookieJar.Cookie;
+
+
+/**
+ * Store cookies in a file. Every cookie update is appended to the file: the
+ * latest record for a cookie wins, and an expired cookie removes a previous
+ * one. Updates are written in batches from a background thread, shortly after
+ * they happen. The file is rewritten when it holds too many outdated records.
+ * @author Pixmob
+ */
+final class PersistentCookieStore {
+    private static final long FLUSH_DELAY_MS = 1000;
+    private static final int MAX_FLUSH_BACKOFF = 6;
+    private static final int COMPACT_THRESHOLD = 256;
+    private static ScheduledExecutorService flushExecutor;
+    private final File file;
+    private final Platform platform;
+    private final Map<String, Cookie> cookies = new LinkedHashMap<String, Cookie>(8);
+    private List<Cookie> pendingCookies = new ArrayList<Cookie>(4);
+    private boolean compactPending;
+    private boolean flushScheduled;
+    private int failedFlushes;
+    private int recordCount;
+
+    public PersistentCookieStore(final File file, final Platform platform) {
+        this.file = file;
+        this.platform = platform;
+    }
+
+    /**
+     * Read cookies from the file.
+     */
+    public synchronized List<Cookie> load() {
+        cookies.clear();
+        recordCount = 0;
+        if (file.exists()) {
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+                final long now = System.currentTimeMillis();
+                for (;;) {
+                    in.mark(1);
+                    if (in.read() == -1) {
+                        break;
+                    }
+                    in.reset();
+
+                    final Cookie cookie;
+                    try {
+                        cookie = new Cookie(in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF(), in.readLong(),
+                                in.readBoolean(), in.readBoolean());
+                    } catch (EOFException e) {
+                        // The last record is incomplete if the application
+                        // was killed while writing it: new records must not be
+                        // appended after this one.
+                        compactPending = true;
+                        break;
+                    }
+                    update(cookie, now);
+                    ++recordCount;
+                }
+            } catch (IOException e) {
+                platform.logWarning("Failed to load cookies from " + file, e);
+                // Drop unreadable records when the file is written.
+                compactPending = true;
+            } finally {
+                IOUtils.close(in);
+            }
+        }
+        return new ArrayList<Cookie>(cookies.values());
+    }
+
+    /**
+     * Write a cookie. An expired cookie removes a previous cookie with the same
+     * name and path.
+     */
+    public synchronized void write(Cookie cookie) {
+        update(cookie, System.currentTimeMillis());
+        pendingCookies.add(cookie);
+        scheduleFlush();
+    }
+
+    /**
+     * Remove every cookie.
+     */
+    public synchronized void clear() {
+        cookies.clear();
+        pendingCookies.clear();
+        compactPending = true;
+        scheduleFlush();
+    }
+
+    private void update(Cookie cookie, long now) {
+        final String key = cookie.domain + " " + cookie.path + " " + cookie.name;
+        if (cookie.expiryTime == -1 || cookie.expiryTime > now) {
+            cookies.put(key, cookie);
+        } else {
+            cookies.remove(key);
+        }
+    }
+
+    private void scheduleFlush() {
+        scheduleFlush(FLUSH_DELAY_MS);
+    }
+
+    private void scheduleFlush(long delay) {
+        if (!flushScheduled) {
+            flushScheduled = true;
+            getFlushExecutor().schedule(new Runnable() {
+                public void run() {
+                    flush();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Write pending updates to the file.
+     */
+    private void flush() {
+        final List<Cookie> cookiesToWrite;
+        final boolean compact;
+        synchronized (this) {
+            flushScheduled = false;
+            compact = compactPending || recordCount + pendingCookies.size() > COMPACT_THRESHOLD
+                    && recordCount + pendingCookies.size() > 2 * cookies.size();
+            if (compact) {
+                cookiesToWrite = new ArrayList<Cookie>(cookies.values());
+                recordCount = cookiesToWrite.size();
+            } else {
+                cookiesToWrite = pendingCookies;
+                recordCount += cookiesToWrite.size();
+            }
+            pendingCookies = new ArrayList<Cookie>(4);
+            compactPending = false;
+        }
+
+        // Flushes are executed by a single thread: records are written in
+        // order.
+        final File outputFile = compact ? new File(file.getPath() + ".tmp") : file;
+        try {
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(
+                    outputFile, !compact)));
+            try {
+                for (final Cookie cookie : cookiesToWrite) {
+                    out.writeUTF(cookie.name);
+                    out.writeUTF(cookie.value);
+                    out.writeUTF(cookie.domain);
+                    out.writeUTF(cookie.path);
+                    out.writeLong(cookie.expiryTime);
+                    out.writeBoolean(cookie.hostOnly);
+                    out.writeBoolean(cookie.secure);
+                }
+            } finally {
+                out.close();
+            }
+            if (compact && !outputFile.renameTo(file)) {
+                throw new IOException("Cannot rename " + outputFile + " to " + file);
+            }
+            synchronized (this) {
+                failedFlushes = 0;
+            }
+        } catch (IOException e) {
+            platform.logWarning("Failed to write cookies to " + file, e);
+            synchronized (this) {
+                // Rewrite the whole file later, waiting longer after each
+                // failure (up to about a minute).
+                compactPending = true;
+                failedFlushes = Math.min(failedFlushes + 1, MAX_FLUSH_BACKOFF);
+                scheduleFlush(FLUSH_DELAY_MS << failedFlushes);
+            }
+        }
+    }
+
+    private static synchronized ScheduledExecutorService getFlushExecutor() {
+        if (flushExecutor == null) {
+            flushExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    final Thread t = new Thread(r, TAG + "-cookies");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return flushExecutor;
+    }
+}
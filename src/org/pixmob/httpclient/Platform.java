@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.httpclient;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.KeyStore;
+
+import javax.net.ssl.HostnameVerifier;
+
+/**
+ * Services provided by the platform running a {@link HttpClient}. Use
+ * {@link AndroidPlatform} in an Android application, or {@link JvmPlatform}
+ * on a standard Java virtual machine.
+ * @author Pixmob
+ */
+public abstract class Platform {
+    /**
+     * SDK version returned by platforms which are not Android: workarounds for
+     * older Android versions are disabled.
+     */
+    public static final int NO_SDK_VERSION = Integer.MAX_VALUE;
+
+    /**
+     * Get the directory for temporary files and cached responses.
+     */
+    public abstract File getCacheDir();
+
+    /**
+     * Get the directory for persistent files, such as stored cookies.
+     */
+    public abstract File getFilesDir();
+
+    /**
+     * Load SSL certificates trusted in addition to the system certificates,
+     * or return <code>null</code> to only trust system certificates.
+     */
+    public abstract KeyStore loadTrustStore() throws IOException;
+
+    /**
+     * Get the hostname verifier for secure connections.
+     */
+    public abstract HostnameVerifier getHostnameVerifier();
+
+    /**
+     * Get the Android SDK version, or {@link #NO_SDK_VERSION}.
+     */
+    public abstract int getSdkVersion();
+
+    /**
+     * Get the default Http User Agent.
+     */
+    public abstract String getDefaultUserAgent();
+
+    /**
+     * Log a warning.
+     * @param error
+     *            error causing this warning, may be <code>null</code>
+     */
+    public abstract void logWarning(String message, Throwable error);
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.httpclient;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+
+/**
+ * {@link HttpResponseHandler} implementation for downloading a file, resuming
+ * a previous download if possible. The validator of the downloaded resource (
+ * <code>ETag</code> or <code>Last-Modified</code>) is stored next to the file
+ * while the download is in progress. When a download is resumed, the missing
+ * bytes are requested with a <code>Range</code> header, and the
+ * <code>If-Range</code> header makes sure the resource is unchanged: if the
+ * resource was modified, the server sends the full response.
+ * @author Pixmob
+ */
+class ResumableDownloadHandler extends HttpResponseHandler {
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+    private final File file;
+    private final File validatorFile;
+    private final long resumeOffset;
+
+    public ResumableDownloadHandler(final File file) {
+        if (file == null) {
+            throw new IllegalArgumentException("File cannot be null");
+        }
+        this.file = file;
+        this.validatorFile = new File(file.getPath() + ".resume");
+
+        final String validator = readValidator();
+        resumeOffset = validator != null && file.exists() ? file.length() : 0;
+    }
+
+    /**
+     * Add headers to a request for resuming the download.
+     */
+    public void prepare(HttpRequestBuilder req) {
+        // Byte ranges apply to the encoded content: the file must be
+        // downloaded without compression.
+        req.header("Accept-Encoding", "identity");
+        if (resumeOffset > 0) {
+            req.header("Range", "bytes=" + resumeOffset + "-");
+            req.header("If-Range", readValidator());
+            // The server rejects the range if the file is already complete.
+            req.expect(HttpURLConnection.HTTP_OK, HttpURLConnection.HTTP_PARTIAL, HTTP_RANGE_NOT_SATISFIABLE);
+        }
+    }
+
+    @Override
+    public void onResponse(HttpResponse response) throws Exception {
+        if (response.getStatusCode() == HTTP_RANGE_NOT_SATISFIABLE) {
+            // The range starts after the end of the resource, which is
+            // unchanged: the download is complete if the file has the
+            // resource length, such as in "Content-Range: bytes */1000".
+            final String contentRange = response.getFirstHeaderValue("Content-Range");
+            final long length = contentRange == null ? -1 : getRangeTotal(contentRange);
+            if (length == -1 || length != resumeOffset || file.length() != resumeOffset) {
+                // The download is restarted next time.
+                validatorFile.delete();
+                throw new HttpClientException("Cannot resume download: unexpected content range " + contentRange);
+            }
+            validatorFile.delete();
+            return;
+        }
+
+        final boolean append;
+        final long expectedLength;
+        if (response.getStatusCode() == HttpURLConnection.HTTP_PARTIAL) {
+            // Partial content: the resource is unchanged.
+            final String contentRange = response.getFirstHeaderValue("Content-Range");
+            if (getRangeStart(contentRange) != resumeOffset) {
+                throw new HttpClientException("Unexpected content range: " + contentRange);
+            }
+            expectedLength = getRangeTotal(contentRange);
+            append = true;
+        } else {
+            // The download is restarted.
+            writeValidator(getValidator(response));
+            expectedLength = parseLong(response.getFirstHeaderValue("Content-Length"));
+            append = false;
+        }
+
+        final OutputStream out = new FileOutputStream(file, append);
+        try {
+            final InputStream in = response.getPayload();
+            final byte[] buf = new byte[8192];
+            for (int bytesRead = 0; (bytesRead = in.read(buf)) != -1;) {
+                out.write(buf, 0, bytesRead);
+            }
+        } catch (IOException e) {
+            throw new HttpClientException("Cannot write Http response to file " + file, e);
+        } finally {
+            IOUtils.close(out);
+        }
+
+        if (expectedLength != -1 && file.length() != expectedLength) {
+            // The connection was closed too early: the download can be
+            // resumed later.
+            throw new HttpClientException("Incomplete download: got " + file.length() + " bytes out of "
+                    + expectedLength);
+        }
+
+        // The download is complete.
+        validatorFile.delete();
+    }
+
+    /**
+     * Get the first byte position from a <code>Content-Range</code> header,
+     * such as <code>bytes 1000-1999/2000</code>.
+     */
+    private static long getRangeStart(String contentRange) {
+        if (contentRange != null && contentRange.startsWith("bytes ")) {
+            final int i = contentRange.indexOf('-');
+            if (i != -1) {
+                return parseLong(contentRange.substring(6, i));
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Get the complete length from a <code>Content-Range</code> header, or
+     * <code>-1</code> if unknown.
+     */
+    private static long getRangeTotal(String contentRange) {
+        final int i = contentRange.indexOf('/');
+        return i == -1 ? -1 : parseLong(contentRange.substring(i + 1));
+    }
+
+    private static long parseLong(String str) {
+        if (str != null) {
+            try {
+                return Long.parseLong(str.trim());
+            } catch (NumberFormatException ignore) {
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Get the validator of a response, or <code>null</code> if the download
+     * cannot be resumed. Weak entity tags cannot be used with
+     * <code>If-Range</code>.
+     */
+    private static String getValidator(HttpResponse response) {
+        final String etag = response.getFirstHeaderValue("ETag");
+        if (etag != null && !etag.startsWith("W/")) {
+            return etag;
+        }
+        return response.getFirstHeaderValue("Last-Modified");
+    }
+
+    private String readValidator() {
+        if (!validatorFile.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(validatorFile));
+            return in.readUTF();
+        } catch (IOException e) {
+            return null;
+        } finally {
+            IOUtils.close(in);
+        }
+    }
+
+    private void writeValidator(String validator) throws IOException {
+        if (validator == null) {
+            validatorFile.delete();
+            return;
+        }
+        final DataOutputStream out = new DataOutputStream(new FileOutputStream(validatorFile));
+        try {
+            out.writeUTF(validator);
+        } finally {
+            out.close();
+        }
+    }
+}
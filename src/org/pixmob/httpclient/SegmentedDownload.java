@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.httpclient;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Download a file with several concurrent requests. The file length is
+ * retrieved with a <code>HEAD</code> request, and each request downloads a
+ * byte range into a pre-allocated file. A failed segment is retried from the
+ * last byte it received. Every segment must come from the same version of the
+ * file: a segment whose validator (<code>ETag</code> or
+ * <code>Last-Modified</code>) differs from the one returned by the
+ * <code>HEAD</code> request is rejected. If the server rejects the
+ * <code>HEAD</code> request or does not support byte ranges, the file is
+ * downloaded with a single request.
+ * @author Pixmob
+ */
+final class SegmentedDownload {
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long MIN_SEGMENT_SIZE = 256 * 1024;
+    private final HttpClient hc;
+    private final String uri;
+    private final File file;
+    private final int segmentCount;
+    private String validator;
+
+    public SegmentedDownload(final HttpClient hc, final String uri, final File file, final int segmentCount) {
+        this.hc = hc;
+        this.uri = uri;
+        this.file = file;
+        this.segmentCount = segmentCount;
+    }
+
+    public void execute() throws HttpClientException {
+        final HttpResponse headResp;
+        try {
+            headResp = hc.head(uri).header("Accept-Encoding", "identity").execute();
+        } catch (HttpClientException e) {
+            // Some servers do not implement HEAD (405, 501...): the response
+            // to a GET request may still be valid.
+            downloadAll();
+            return;
+        }
+        final long contentLength = parseLong(headResp.getFirstHeaderValue("Content-Length"));
+        final boolean acceptRanges = "bytes".equalsIgnoreCase(headResp.getFirstHeaderValue("Accept-Ranges"));
+        final int actualSegmentCount = (int) Math.min(segmentCount, contentLength / MIN_SEGMENT_SIZE);
+        if (!acceptRanges || actualSegmentCount < 2) {
+            // Segments are not supported, or the file is too small.
+            downloadAll();
+            return;
+        }
+
+        // Segments must come from the same version of the remote file.
+        validator = headResp.getFirstHeaderValue("ETag");
+        if (validator == null || validator.startsWith("W/")) {
+            validator = headResp.getFirstHeaderValue("Last-Modified");
+        }
+
+        try {
+            final RandomAccessFile output = new RandomAccessFile(file, "rw");
+            try {
+                output.setLength(contentLength);
+            } finally {
+                output.close();
+            }
+        } catch (IOException e) {
+            throw new HttpClientException("Cannot allocate file " + file, e);
+        }
+
+        final List<Segment> allSegments = new ArrayList<Segment>(actualSegmentCount);
+        final long segmentSize = contentLength / actualSegmentCount;
+        for (int i = 0; i < actualSegmentCount; ++i) {
+            final long start = i * segmentSize;
+            final long end = i == actualSegmentCount - 1 ? contentLength - 1 : start + segmentSize - 1;
+            allSegments.add(new Segment(start, end));
+        }
+
+        final List<Segment> segments = new ArrayList<Segment>(allSegments);
+
+        for (int attempt = 1; !segments.isEmpty(); ++attempt) {
+            final List<Future<HttpResponse>> results = new ArrayList<Future<HttpResponse>>(segments.size());
+            for (final Segment segment : segments) {
+                final HttpRequestBuilder req = hc.get(uri).expect(206).header("Accept-Encoding", "identity")
+                        .header("Range", "bytes=" + (segment.start + segment.written) + "-" + segment.end);
+                if (validator != null) {
+                    req.header("If-Range", validator);
+                }
+                results.add(req.to(segment).executeAsync());
+            }
+
+            HttpClientException error = null;
+            final List<Segment> failedSegments = new ArrayList<Segment>(segments.size());
+            for (int i = 0; i < segments.size(); ++i) {
+                try {
+                    results.get(i).get();
+                } catch (InterruptedException e) {
+                    cancel(results);
+                    Thread.currentThread().interrupt();
+                    throw new HttpClientException("Download interrupted: " + uri);
+                } catch (ExecutionException e) {
+                    error = new HttpClientException("Failed to download segment from " + uri, e.getCause());
+                }
+                if (segments.get(i).remaining() > 0) {
+                    failedSegments.add(segments.get(i));
+                }
+            }
+            if (!failedSegments.isEmpty() && attempt == MAX_ATTEMPTS) {
+                throw error != null ? error : new HttpClientException("Incomplete download: " + uri);
+            }
+            segments.clear();
+            segments.addAll(failedSegments);
+        }
+
+        // Length check: every segment was validated when its response was
+        // received, the file must now be complete.
+        long downloadedLength = 0;
+        for (final Segment segment : allSegments) {
+            downloadedLength += segment.written;
+        }
+        if (downloadedLength != contentLength || file.length() != contentLength) {
+            throw new HttpClientException("Incomplete download: got " + downloadedLength + " bytes out of "
+                    + contentLength);
+        }
+    }
+
+    private void downloadAll() throws HttpClientException {
+        try {
+            hc.get(uri).to(file).execute();
+        } catch (IOException e) {
+            throw new HttpClientException("Cannot write Http response to file " + file, e);
+        }
+    }
+
+    private static void cancel(List<Future<HttpResponse>> results) {
+        for (final Future<HttpResponse> result : results) {
+            result.cancel(true);
+        }
+    }
+
+    private static long parseLong(String str) {
+        if (str != null) {
+            try {
+                return Long.parseLong(str.trim());
+            } catch (NumberFormatException ignore) {
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Byte range of the file, downloaded by a single request.
+     */
+    private class Segment extends HttpResponseHandler {
+        final long start;
+        final long end;
+        volatile long written;
+
+        public Segment(final long start, final long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        public long remaining() {
+            return end - start + 1 - written;
+        }
+
+        @Override
+        public void onResponse(HttpResponse response) throws Exception {
+            final String contentRange = response.getFirstHeaderValue("Content-Range");
+            final long offset = start + written;
+            if (contentRange == null || !contentRange.startsWith("bytes " + offset + "-")) {
+                throw new HttpClientException("Unexpected content range: " + contentRange);
+            }
+            if (validator != null) {
+                final String etag = response.getFirstHeaderValue("ETag");
+                final String lastModified = response.getFirstHeaderValue("Last-Modified");
+                if ((etag != null || lastModified != null) && !validator.equals(etag)
+                        && !validator.equals(lastModified)) {
+                    throw new HttpClientException("Remote file changed during download: " + uri);
+                }
+            }
+
+            final RandomAccessFile output = new RandomAccessFile(file, "rw");
+            try {
+                output.seek(offset);
+                final InputStream in = response.getPayload();
+                final byte[] buf = new byte[8192];
+                for (int bytesRead = 0; remaining() > 0
+                        && (bytesRead = in.read(buf, 0, (int) Math.min(buf.length, remaining()))) != -1;) {
+                    output.write(buf, 0, bytesRead);
+                    written += bytesRead;
+                }
+            } finally {
+                output.close();
+            }
+        }
+    }
+}